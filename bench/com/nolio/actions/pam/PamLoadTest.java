@@ -0,0 +1,223 @@
+package com.nolio.actions.pam;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test that runs concurrent PAMExecuteProcess + PAMWaitForProcessEnd flows, one agent
+ * thread per flow, against a {@link PamSimulator}, and reports throughput, latency
+ * percentiles, the peak thread and socket counts and the {@link PamMetrics} of the run.
+ * <p>
+ * Configured through system properties:
+ * <ul>
+ * <li>{@code pam.load.flows} - number of flows, all started at once (default 200)</li>
+ * <li>{@code pam.load.pollingSeconds} - Polling Period of the wait action (default 5)</li>
+ * <li>{@code pam.load.adaptivePolling} - Adaptive Polling of the wait action (default true)</li>
+ * <li>{@code pam.load.latencyMillis} - simulated server latency, min-max (default 5-50)</li>
+ * <li>{@code pam.load.durationMillis} - simulated process duration, min-max (default 2000-8000)</li>
+ * <li>{@code pam.load.faultRate} - share of requests answered with a SOAP fault (default 0)</li>
+ * <li>{@code pam.load.failureRate} - share of instances that end Failed (default 0)</li>
+ * <li>{@code pam.load.datasetSize} - params in each returned dataset (default 10)</li>
+ * <li>{@code pam.load.compressResponses} - gzip responses to clients that accept it (default false)</li>
+ * </ul>
+ * The pam.transport.*, pam.wait.* and pam.statusCache.* properties tune the actions as usual.
+ */
+public final class PamLoadTest {
+
+    private PamLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int flows = Integer.getInteger("pam.load.flows", 200);
+        int pollingSeconds = Integer.getInteger("pam.load.pollingSeconds", 5);
+        boolean adaptivePolling = Boolean.parseBoolean(System.getProperty("pam.load.adaptivePolling", "true"));
+        long[] latency = range(System.getProperty("pam.load.latencyMillis", "5-50"));
+        long[] duration = range(System.getProperty("pam.load.durationMillis", "2000-8000"));
+
+        PamSimulator simulator = new PamSimulator()
+                .setLatency(latency[0], latency[1])
+                .setProcessDuration(duration[0], duration[1])
+                .setFaultRate(Double.parseDouble(System.getProperty("pam.load.faultRate", "0")))
+                .setFailureRate(Double.parseDouble(System.getProperty("pam.load.failureRate", "0")))
+                .setDatasetSize(Integer.getInteger("pam.load.datasetSize", 10))
+                .setCompressResponses(Boolean.getBoolean("pam.load.compressResponses"));
+        String domainUrl = simulator.start();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        Sampler sampler = new Sampler();
+        ScheduledExecutorService sampling = Executors.newSingleThreadScheduledExecutor(PamWaitScheduler.daemonThreads("PAM-Load-Sampler"));
+        sampling.scheduleAtFixedRate(sampler, 0, 100, TimeUnit.MILLISECONDS);
+
+        ExecutorService agents = Executors.newFixedThreadPool(flows, PamWaitScheduler.daemonThreads("PAM-Load-Flow"));
+        final long[] startMillis = new long[flows];
+        final long[] flowMillis = new long[flows];
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(flows);
+        long began = System.nanoTime();
+        for (int i = 0; i < flows; i++) {
+            final int flow = i;
+            agents.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long start = System.nanoTime();
+                        PAMExecuteProcess execute = new PAMExecuteProcess();
+                        set(execute, "domainUrl", domainUrl);
+                        set(execute, "username", "pamuser");
+                        set(execute, "processPath", "/Load/Process");
+                        set(execute, "processParams", PamPayloads.processParams(5));
+                        execute.executeAction();
+                        startMillis[flow] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        String roid = (String) get(execute, "instanceRoid");
+                        if (roid == null || roid.length() == 0) {
+                            failed.incrementAndGet();
+                            flowMillis[flow] = -1;
+                            return;
+                        }
+
+                        PAMWaitForProcessEnd wait = new PAMWaitForProcessEnd();
+                        set(wait, "domainUrl", domainUrl);
+                        set(wait, "username", "pamuser");
+                        set(wait, "processPath", "/Load/Process");
+                        set(wait, "instanceRoid", roid);
+                        set(wait, "pollingSeconds", pollingSeconds);
+                        set(wait, "timeoutSeconds", 600);
+                        set(wait, "adaptivePolling", adaptivePolling);
+                        wait.executeAction();
+                        flowMillis[flow] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        if ("Completed".equals(get(wait, "instanceStatus"))) {
+                            completed.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        flowMillis[flow] = -1;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - began) / 1e9;
+        sampling.shutdownNow();
+        agents.shutdownNow();
+        simulator.stop();
+
+        System.out.println(String.format(Locale.ROOT, "Flows:                %d (%d Completed, %d failed) in %.1f s",
+                flows, completed.get(), failed.get(), elapsedSeconds));
+        System.out.println(String.format(Locale.ROOT, "Throughput:           %.1f flows/s", completed.get() / elapsedSeconds));
+        System.out.println("Start latency (ms):   " + percentiles(startMillis));
+        System.out.println("Flow latency (ms):    " + percentiles(flowMillis));
+        System.out.println(String.format(Locale.ROOT, "Server requests:      %d checkServerStatus, %d executeProcess, %d getProcessStatus, %d faults",
+                simulator.getStatusRequests(), simulator.getExecuteRequests(), simulator.getFlowStateRequests(), simulator.getFaults()));
+        System.out.println(String.format(Locale.ROOT, "Polls per ended wait: %.2f", PamMetrics.forDomain(domainUrl).getPollsPerEndedWait()));
+        System.out.println("Peak threads:         " + threads.getPeakThreadCount() + " in the JVM, " + sampler.peakPamThreads
+                + " PAM client threads (excluding the " + flows + " agent threads and the simulator)");
+        System.out.println("Peak sockets:         " + (sampler.peakSockets >= 0 ? Integer.toString(sampler.peakSockets) : "n/a")
+                + " open in the JVM (both ends), " + simulator.getConnectionCount() + " client connections seen by the simulator");
+        System.out.println("Metrics:              " + PamMetrics.forDomain(domainUrl));
+    }
+
+    /** p50/p90/p99/max of the non-negative samples */
+    private static String percentiles(long[] samples) {
+        long[] sorted = new long[samples.length];
+        int count = 0;
+        for (long sample : samples) {
+            if (sample >= 0) {
+                sorted[count++] = sample;
+            }
+        }
+        if (count == 0) {
+            return "n/a";
+        }
+        sorted = Arrays.copyOf(sorted, count);
+        Arrays.sort(sorted);
+        return "p50=" + percentile(sorted, 0.50) + " p90=" + percentile(sorted, 0.90) + " p99=" + percentile(sorted, 0.99)
+                + " max=" + sorted[count - 1];
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static long[] range(String value) {
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            long millis = Long.parseLong(value.trim());
+            return new long[] { millis, millis };
+        }
+        return new long[] { Long.parseLong(value.substring(0, dash).trim()), Long.parseLong(value.substring(dash + 1).trim()) };
+    }
+
+    /** Set an action parameter the way the agent does, by field */
+    static void set(Object action, String field, Object value) throws Exception {
+        Field declared = action.getClass().getDeclaredField(field);
+        declared.setAccessible(true);
+        declared.set(action, value);
+    }
+
+    static Object get(Object action, String field) throws Exception {
+        Field declared = action.getClass().getDeclaredField(field);
+        declared.setAccessible(true);
+        return declared.get(action);
+    }
+
+    /** Samples the PAM client threads and the open sockets of the JVM */
+    private static final class Sampler implements Runnable {
+        volatile int peakPamThreads;
+        volatile int peakSockets = -1;
+
+        @Override
+        public void run() {
+            int pamThreads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                String name = thread.getName();
+                if (name.startsWith("PAM-") && !name.startsWith("PAM-Load-") && !name.startsWith("PAM-Simulator")) {
+                    pamThreads++;
+                }
+            }
+            peakPamThreads = Math.max(peakPamThreads, pamThreads);
+            int sockets = countSockets();
+            if (sockets >= 0) {
+                peakSockets = Math.max(peakSockets, sockets);
+            }
+        }
+
+        /** Open socket descriptors of this process, or -1 where /proc is not available */
+        private static int countSockets() {
+            File[] descriptors = new File("/proc/self/fd").listFiles();
+            if (descriptors == null) {
+                return -1;
+            }
+            int sockets = 0;
+            for (File descriptor : descriptors) {
+                try {
+                    Path target = Files.readSymbolicLink(descriptor.toPath());
+                    if (target.toString().startsWith("socket:")) {
+                        sockets++;
+                    }
+                } catch (Exception e) {
+                    // closed while listing
+                }
+            }
+            return sockets;
+        }
+    }
+}
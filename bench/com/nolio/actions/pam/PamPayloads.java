@@ -0,0 +1,72 @@
+package com.nolio.actions.pam;
+
+import java.io.UnsupportedEncodingException;
+
+/** SOAP payloads shaped like the ones a PAM domain sends, with datasets of a chosen size */
+final class PamPayloads {
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:itp=\"http://www.ca.com/itpam\">"
+            + "<SOAP-ENV:Body>";
+    private static final String ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    private PamPayloads() {
+    }
+
+    static byte[] checkServerStatusResponse() {
+        return bytes(ENVELOPE_START + "<itp:checkServerStatusResponse><itp:serverStatus>Active</itp:serverStatus>"
+                + "</itp:checkServerStatusResponse>" + ENVELOPE_END);
+    }
+
+    static byte[] executeProcessResponse(String instanceRoid) {
+        return bytes(ENVELOPE_START + "<itp:executeProcessResponse><itp:flow><itp:ROID>" + instanceRoid + "</itp:ROID>"
+                + "<itp:flow-state>Running</itp:flow-state></itp:flow></itp:executeProcessResponse>" + ENVELOPE_END);
+    }
+
+    /** A getProcessStatus response whose dataset has paramCount params */
+    static byte[] getProcessStatusResponse(String instanceRoid, String flowState, int paramCount) {
+        StringBuilder xml = new StringBuilder(ENVELOPE_START.length() + 512 + paramCount * 96);
+        xml.append(ENVELOPE_START)
+                .append("<itp:getProcessStatusResponse><itp:flow><itp:ROID>").append(instanceRoid).append("</itp:ROID>")
+                .append("<itp:name>/Release/Deploy Application</itp:name>")
+                .append("<itp:flow-state>").append(flowState).append("</itp:flow-state>")
+                .append("<itp:params>");
+        for (int i = 0; i < paramCount; i++) {
+            xml.append("<itp:param name=\"").append(paramName(i)).append("\">")
+                    .append(paramValue(i))
+                    .append("</itp:param>");
+        }
+        xml.append("</itp:params></itp:flow></itp:getProcessStatusResponse>").append(ENVELOPE_END);
+        return bytes(xml.toString());
+    }
+
+    static byte[] faultResponse(String faultString) {
+        return bytes(ENVELOPE_START + "<SOAP-ENV:Fault><faultcode>SOAP-ENV:Server</faultcode><faultstring>" + faultString
+                + "</faultstring></SOAP-ENV:Fault>" + ENVELOPE_END);
+    }
+
+    /** name:value params as passed to PAMExecuteProcess */
+    static String[] processParams(int paramCount) {
+        String[] params = new String[paramCount];
+        for (int i = 0; i < paramCount; i++) {
+            params[i] = paramName(i) + ":" + paramValue(i);
+        }
+        return params;
+    }
+
+    static String paramName(int index) {
+        return "param" + (index % 50) + "_" + index;
+    }
+
+    static String paramValue(int index) {
+        return "value " + index + " for http://deploy.example.com:8080/app &amp; C:\\releases\\" + index;
+    }
+
+    private static byte[] bytes(String xml) {
+        try {
+            return xml.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.nolio.actions.pam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.soap.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * createSoapRequest() of each action: the pre-serialized templates of PamRequestBuilder
+ * against the SAAJ message construction the actions used before, both serialized to bytes.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PamRequestBenchmark {
+
+    @Param({ "0", "10", "100" })
+    int paramCount;
+
+    private String[] params;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setUp() {
+        params = PamPayloads.processParams(paramCount);
+    }
+
+    @Benchmark
+    public int checkServerStatusTemplate() throws IOException {
+        return write(PamRequestBuilder.checkServerStatus("pamuser", "secret"));
+    }
+
+    @Benchmark
+    public int checkServerStatusSaaj() throws Exception {
+        SOAPMessage soapMessage = saajMessage("checkServerStatus");
+        SOAPElement soapBodyElem = soapMessage.getSOAPBody().addChildElement("checkServerStatus", "itp");
+        addAuth(soapBodyElem, "pamuser", "secret");
+        return write(soapMessage);
+    }
+
+    @Benchmark
+    public int executeProcessTemplate() throws IOException {
+        return write(PamRequestBuilder.executeProcess("/Release/Deploy Application", "pamuser", "secret", params));
+    }
+
+    @Benchmark
+    public int executeProcessSaaj() throws Exception {
+        SOAPMessage soapMessage = saajMessage("ExecuteC2OFlow");
+        SOAPElement soapBodyElemFlow = soapMessage.getSOAPBody().addChildElement("executeProcess", "itp").addChildElement("flow", "itp");
+        soapBodyElemFlow.addChildElement("name", "itp").addTextNode("/Release/Deploy Application");
+        soapBodyElemFlow.addChildElement("action", "itp").addTextNode("start");
+        addAuth(soapBodyElemFlow, "pamuser", "secret");
+        SOAPElement soapBodyElemParams = soapBodyElemFlow.addChildElement("params", "itp");
+        for (int i = 0; i < params.length; i++) {
+            String[] splitString = params[i].split(":");
+            SOAPElement soapBodyElemParam = soapBodyElemParams.addChildElement("param", "itp");
+            soapBodyElemParam.setAttribute("name", splitString[0]);
+            soapBodyElemParam.addTextNode(splitString[1]);
+        }
+        return write(soapMessage);
+    }
+
+    @Benchmark
+    public int getProcessStatusTemplate() throws IOException {
+        return write(PamRequestBuilder.getProcessStatus("12345", "pamuser", "secret"));
+    }
+
+    @Benchmark
+    public int getProcessStatusSaaj() throws Exception {
+        SOAPMessage soapMessage = saajMessage("GetFlowState");
+        SOAPElement soapBodyElemFlow = soapMessage.getSOAPBody().addChildElement("getProcessStatus", "itp").addChildElement("flow", "itp");
+        soapBodyElemFlow.addChildElement("ROID", "itp").addTextNode("12345");
+        soapBodyElemFlow.addChildElement("action", "itp").addTextNode("check");
+        addAuth(soapBodyElemFlow, "pamuser", "secret");
+        return write(soapMessage);
+    }
+
+    private static SOAPMessage saajMessage(String soapAction) throws SOAPException {
+        SOAPMessage soapMessage = MessageFactory.newInstance().createMessage();
+        soapMessage.getMimeHeaders().addHeader("SOAPAction", soapAction);
+        soapMessage.getSOAPPart().getEnvelope().addNamespaceDeclaration("itp", "http://www.ca.com/itpam");
+        return soapMessage;
+    }
+
+    private static void addAuth(SOAPElement parent, String user, String password) throws SOAPException {
+        SOAPElement soapBodyElemAuth = parent.addChildElement("auth", "itp");
+        soapBodyElemAuth.addChildElement("user", "itp").addTextNode(user);
+        soapBodyElemAuth.addChildElement("password", "itp").addTextNode(password);
+    }
+
+    private int write(PamRequest request) throws IOException {
+        out.reset();
+        request.writeTo(out);
+        return out.size();
+    }
+
+    private int write(SOAPMessage soapMessage) throws Exception {
+        soapMessage.saveChanges();
+        out.reset();
+        soapMessage.writeTo(out);
+        return out.size();
+    }
+}
@@ -0,0 +1,82 @@
+package com.nolio.actions.pam;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.soap.*;
+import javax.xml.xpath.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * processSoapResponse() / getProcessDataset() on getProcessStatus responses of growing
+ * dataset size: the StAX decoder, with and without a dataset filter, against the
+ * SAAJ + XPath decoding the actions used before.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PamResponseBenchmark {
+
+    @Param({ "10", "1000", "10000" })
+    int paramCount;
+
+    private byte[] payload;
+    private PamDatasetFilter filter;
+
+    @Setup
+    public void setUp() throws Exception {
+        payload = PamPayloads.getProcessStatusResponse("12345", "Completed", paramCount);
+        filter = PamDatasetFilter.of(new String[] { PamPayloads.paramName(0), PamPayloads.paramName(paramCount / 2),
+                PamPayloads.paramName(paramCount - 1) }, null);
+    }
+
+    @Benchmark
+    public String[] stax() throws Exception {
+        PamResponse response = PamResponseParser.parse(new ByteArrayInputStream(payload), "UTF-8");
+        return response.getDataset().toArray();
+    }
+
+    @Benchmark
+    public String[] staxFiltered() throws Exception {
+        PamResponse response = PamResponseParser.parse(new ByteArrayInputStream(payload), "UTF-8", filter);
+        return response.getDataset().toArray();
+    }
+
+    @Benchmark
+    public String[] saajXPath() throws Exception {
+        MimeHeaders headers = new MimeHeaders();
+        headers.addHeader("Content-Type", "text/xml; charset=utf-8");
+        SOAPMessage soapResponse = MessageFactory.newInstance().createMessage(headers, new ByteArrayInputStream(payload));
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        String instanceStatus = xPath.evaluate("//*[local-name()='flow-state']/text()", soapResponse.getSOAPBody());
+        XPathExpression nameExpression = xPath.compile("./@name");
+        XPathExpression valueExpression = xPath.compile("./text()");
+        NodeList params = (NodeList) xPath.evaluate("//*[local-name()='params']/*[local-name()='param']", soapResponse.getSOAPBody(),
+                XPathConstants.NODESET);
+        List<String> ds = new ArrayList<String>();
+        for (int i = 0; i < params.getLength(); i++) {
+            Element param = (Element) params.item(i);
+            ds.add(nameExpression.evaluate(param) + ":" + valueExpression.evaluate(param));
+        }
+        ds.add(instanceStatus);
+        return ds.toArray(new String[ds.size()]);
+    }
+}
@@ -0,0 +1,271 @@
+package com.nolio.actions.pam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a PAM domain, serving {@code /itpam/soap} on the loopback interface.
+ * <p>
+ * Implements checkServerStatus, executeProcess and getProcessStatus. Every response is
+ * delayed by a random latency, a share of requests can be answered with a SOAP fault, and
+ * each started instance runs for a random duration before it ends Completed (or Failed, for
+ * a share of them) with a dataset of a chosen size. Gzip compressed requests are accepted and
+ * responses can be gzip compressed. Settings apply to requests received after they are changed.
+ */
+final class PamSimulator {
+
+    static {
+        // Like the Tomcat connector of a real PAM server; otherwise Nagle delays every response by ~40 ms
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConcurrentMap<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+    private final Set<InetSocketAddress> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+    private final AtomicLong nextRoid = new AtomicLong(100000);
+
+    private final AtomicLong statusRequests = new AtomicLong();
+    private final AtomicLong executeRequests = new AtomicLong();
+    private final AtomicLong flowStateRequests = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
+
+    private volatile long minLatencyMillis = 0;
+    private volatile long maxLatencyMillis = 0;
+    private volatile double faultRate = 0;
+    private volatile long minDurationMillis = 1000;
+    private volatile long maxDurationMillis = 1000;
+    private volatile double failureRate = 0;
+    private volatile int datasetSize = 10;
+    private volatile boolean compressResponses = false;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /** Delay every response by a uniformly random latency */
+    PamSimulator setLatency(long minMillis, long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+        return this;
+    }
+
+    /** Share of requests (0 to 1) answered with a SOAP fault instead of a result */
+    PamSimulator setFaultRate(double faultRate) {
+        this.faultRate = faultRate;
+        return this;
+    }
+
+    /** How long started instances stay Running, uniformly random */
+    PamSimulator setProcessDuration(long minMillis, long maxMillis) {
+        this.minDurationMillis = minMillis;
+        this.maxDurationMillis = Math.max(minMillis, maxMillis);
+        return this;
+    }
+
+    /** Share of instances (0 to 1) that end Failed rather than Completed */
+    PamSimulator setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /** Number of params in the dataset returned by getProcessStatus */
+    PamSimulator setDatasetSize(int datasetSize) {
+        this.datasetSize = datasetSize;
+        return this;
+    }
+
+    /** Gzip responses to clients that accept it, as a server behind a compressing proxy would */
+    PamSimulator setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+        return this;
+    }
+
+    /** Start serving on an ephemeral port and return the domain URL to give to the actions */
+    String start() throws IOException {
+        return start(0);
+    }
+
+    /** Start serving on a given port, e.g. to keep the domain URL across agent restarts */
+    synchronized String start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        executor = Executors.newCachedThreadPool(PamWaitScheduler.daemonThreads("PAM-Simulator"));
+        server.setExecutor(executor);
+        server.createContext("/itpam/soap", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return getDomainUrl();
+    }
+
+    synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    synchronized String getDomainUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/itpam";
+    }
+
+    long getStatusRequests() {
+        return statusRequests.get();
+    }
+
+    long getExecuteRequests() {
+        return executeRequests.get();
+    }
+
+    long getFlowStateRequests() {
+        return flowStateRequests.get();
+    }
+
+    long getFaults() {
+        return faults.get();
+    }
+
+    /** Number of distinct client sockets that sent at least one request */
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    int getInstanceCount() {
+        return instances.size();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress());
+        String body = read("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                ? new GZIPInputStream(exchange.getRequestBody())
+                : exchange.getRequestBody());
+        String soapAction = exchange.getRequestHeaders().getFirst("SOAPAction");
+
+        sleep(random(minLatencyMillis, maxLatencyMillis));
+
+        byte[] payload;
+        int status = 200;
+        if (faultRate > 0 && ThreadLocalRandom.current().nextDouble() < faultRate) {
+            faults.incrementAndGet();
+            payload = PamPayloads.faultResponse("Simulated fault");
+            status = 500;
+        } else if ("checkServerStatus".equals(soapAction)) {
+            statusRequests.incrementAndGet();
+            payload = PamPayloads.checkServerStatusResponse();
+        } else if ("ExecuteC2OFlow".equals(soapAction)) {
+            executeRequests.incrementAndGet();
+            String roid = Long.toString(nextRoid.incrementAndGet());
+            Random random = ThreadLocalRandom.current();
+            long duration = random(minDurationMillis, maxDurationMillis);
+            boolean fails = failureRate > 0 && random.nextDouble() < failureRate;
+            instances.put(roid, new Instance(System.currentTimeMillis() + duration, fails ? "Failed" : "Completed"));
+            payload = PamPayloads.executeProcessResponse(roid);
+        } else if ("GetFlowState".equals(soapAction)) {
+            flowStateRequests.incrementAndGet();
+            String roid = between(body, "<itp:ROID>", "</itp:ROID>");
+            Instance instance = roid == null ? null : instances.get(roid);
+            if (instance == null) {
+                faults.incrementAndGet();
+                payload = PamPayloads.faultResponse("Unknown process instance [" + roid + "]");
+                status = 500;
+            } else {
+                String flowState = System.currentTimeMillis() < instance.endsAt ? "Running" : instance.finalState;
+                payload = PamPayloads.getProcessStatusResponse(roid, flowState, datasetSize);
+            }
+        } else {
+            faults.incrementAndGet();
+            payload = PamPayloads.faultResponse("Unsupported SOAPAction [" + soapAction + "]");
+            status = 500;
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compressResponses && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(payload);
+            gzip.close();
+            payload = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, payload.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(payload);
+        out.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), UTF_8);
+    }
+
+    private static String between(String text, String start, String end) {
+        int from = text.indexOf(start);
+        if (from < 0) {
+            return null;
+        }
+        from += start.length();
+        int to = text.indexOf(end, from);
+        return to < 0 ? null : text.substring(from, to);
+    }
+
+    private static long random(long min, long max) {
+        return max > min ? min + ThreadLocalRandom.current().nextLong(max - min + 1) : min;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Instance {
+        final long endsAt;
+        final String finalState;
+
+        Instance(long endsAt, String finalState) {
+            this.endsAt = endsAt;
+            this.finalState = finalState;
+        }
+    }
+}
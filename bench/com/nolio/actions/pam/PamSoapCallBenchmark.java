@@ -0,0 +1,120 @@
+package com.nolio.actions.pam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A full makeSoapCall() round-trip of PAMCheckServerStatus and PAMGetProcessStatus, from
+ * building the request through the shared PamTransport to the action's outputs, against a
+ * stub PAM server on the loopback interface, which answers every request with a canned
+ * payload. The stub server runs with TCP_NODELAY so that its Nagle delay does not swamp
+ * the client cost. The status cache TTL is 0 and each thread asks for its own ROID, so that
+ * every status call goes to the server. Since the canned status never changes, status
+ * calls after the first are not decoded again, as for the polls of a long wait.
+ * <p>
+ * There is no SAAJ baseline here, as the SAAJ actions are gone; PamRequestBenchmark and
+ * PamResponseBenchmark compare the request and response halves against SAAJ.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dsun.net.httpserver.nodelay=true", "-Dpam.statusCache.ttlMillis=0" })
+@Threads(4)
+@State(Scope.Benchmark)
+public class PamSoapCallBenchmark {
+
+    @Param({ "10", "1000" })
+    int paramCount;
+
+    private final AtomicInteger threads = new AtomicInteger();
+    private HttpServer server;
+    private String domainUrl;
+
+    /** The actions of one benchmark thread, since an action holds its outputs */
+    @State(Scope.Thread)
+    public static class Actions {
+
+        PAMCheckServerStatus checkServerStatus;
+        PAMGetProcessStatus getProcessStatus;
+
+        @Setup(Level.Trial)
+        public void setUp(PamSoapCallBenchmark benchmark) throws Exception {
+            checkServerStatus = new PAMCheckServerStatus();
+            PamLoadTest.set(checkServerStatus, "username", "pamuser");
+            PamLoadTest.set(checkServerStatus, "domainUrl", benchmark.domainUrl);
+            getProcessStatus = new PAMGetProcessStatus();
+            PamLoadTest.set(getProcessStatus, "username", "pamuser");
+            PamLoadTest.set(getProcessStatus, "domainUrl", benchmark.domainUrl);
+            PamLoadTest.set(getProcessStatus, "instanceRoid", "12345-" + benchmark.threads.incrementAndGet());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final byte[] statusPayload = PamPayloads.checkServerStatusResponse();
+        final byte[] flowPayload = PamPayloads.getProcessStatusResponse("12345", "Running", paramCount);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/itpam/soap", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0) {
+                    // drain
+                }
+                String soapAction = exchange.getRequestHeaders().getFirst("SOAPAction");
+                byte[] payload = "checkServerStatus".equals(soapAction) ? statusPayload : flowPayload;
+                exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+                exchange.sendResponseHeaders(200, payload.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(payload);
+                out.close();
+            }
+        });
+        server.start();
+        domainUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/itpam";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public PAMCheckServerStatus checkServerStatus(Actions actions) throws Exception {
+        actions.checkServerStatus.makeSoapCall();
+        return actions.checkServerStatus;
+    }
+
+    @Benchmark
+    public PAMGetProcessStatus getProcessStatus(Actions actions) throws Exception {
+        actions.getProcessStatus.makeSoapCall();
+        return actions.getProcessStatus;
+    }
+}
@@ -1,9 +1,13 @@
 package com.nolio.actions.pam;
 
-import com.nolio.platform.shared.api.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
-import javax.xml.soap.*;
-import javax.xml.xpath.*;
+import com.nolio.platform.shared.api.*;
 
 /** @author kouth01 */
 @ActionDescriptor(name = "PAM - Check Server Status", description = "This action returns the status of a PAM server", category={"CA Process Automation"})
@@ -11,6 +15,10 @@ import javax.xml.xpath.*;
 public class PAMCheckServerStatus implements NolioAction {
 	
     private static final long serialVersionUID = 2000L;
+
+    static {
+        PamXml.warmUp();
+    }
     
     @ParameterDescriptor(name="Username", description="PAM login username", out=false, in=true, order=1)
     private String username="";
@@ -18,18 +26,24 @@ public class PAMCheckServerStatus implements NolioAction {
     @ParameterDescriptor(name="Password", description="PAM login password", out=false, in=true, order=2)    
     private Password password;    
 
-    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam", out=false, in=true, order=3)  
+    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam, or a comma-separated list of the nodes of a cluster to check them all", out=false, in=true, order=3)  
     private String domainUrl="";          
 
     @ParameterDescriptor(name="Server Status", description="Server Status", out=true, in=false)
     private String serverStatus="";
 
+    @ParameterDescriptor(name="Server URL", description="Domain URL of the node whose status is returned; the best node that answered when several are checked", out=true, in=false)
+    private String serverUrl="";
+
+    @ParameterDescriptor(name="Server Statuses", description="Status of each node checked, as url: status (or url: error)", out=true, in=false)
+    private String[] serverStatuses;
+
     @Override
     public ActionResult executeAction() {
         try {
         	makeSoapCall();
-        	_log.info("Status of [" + domainUrl + "]: " + serverStatus);
-        	return new ActionResult(true, "Status of [" + domainUrl + "]: " + serverStatus);
+        	_log.info("Status of [" + serverUrl + "]: " + serverStatus);
+        	return new ActionResult(true, "Status of [" + serverUrl + "]: " + serverStatus);
         } catch (Exception e) {
         	_log.error(e.getMessage());
         	return new ActionResult(false, e.getMessage());
@@ -38,57 +52,70 @@ public class PAMCheckServerStatus implements NolioAction {
     
     /** Send SOAP request and redirect exceptions */
     public void makeSoapCall() throws Exception {
-        // Create SOAP Connection
-        SOAPConnectionFactory soapConnectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection soapConnection = soapConnectionFactory.createConnection();
-
-        String url = domainUrl + "/soap";
-        SOAPMessage soapResponse;
-        try {
-        	 soapResponse = soapConnection.call(createSoapRequest(), url);
-        } catch (Exception e) {
-        	if (e.getMessage().contains("Message send failed")) {
-        		throw new Exception("Unable to connect to [" + domainUrl + "]. Please verify host and port.");
-        	}
-        	throw new Exception("SOAP Call Exception: " + e.getMessage());
-        }        
-        
-        if (soapResponse.getSOAPBody().hasFault()) {
-        	SOAPFault fault = soapResponse.getSOAPBody().getFault();
-        	throw new Exception("SOAP Fault Received: " + fault.getFaultString());
+        PamRouter router = PamRouter.forDomains(domainUrl);
+        if (router.isCluster()) {
+            checkNodes(router);
+            return;
         }
-
+        PamClient client = createClient(domainUrl);
+        PamResponse soapResponse = client.send(createSoapRequest(client));
+        long start = System.nanoTime();
         processSoapResponse(soapResponse);
-        soapConnection.close();
+        serverUrl = client.getDomainUrl();
+        serverStatuses = new String[] { serverUrl + ": " + serverStatus };
+        client.getMetrics().since(PamMetrics.Phase.PROCESS, start);
     }
 
-    /** Create the SOAP Request message */
-    private SOAPMessage createSoapRequest() throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage soapMessage = messageFactory.createMessage();
-
-        MimeHeaders headers = soapMessage.getMimeHeaders();
-        headers.addHeader("SOAPAction", "checkServerStatus");
-        
-        SOAPEnvelope envelope = soapMessage.getSOAPPart().getEnvelope();
-        envelope.addNamespaceDeclaration("itp", "http://www.ca.com/itpam");
+    /** Check every node of a cluster at once and report the best one that answered */
+    private void checkNodes(PamRouter router) throws Exception {
+        List<String> nodes = router.getDomains();
+        List<CompletableFuture<String>> checks = new ArrayList<CompletableFuture<String>>(nodes.size());
+        for (String node : nodes) {
+            checks.add(createClient(node).checkServerStatus());
+        }
+        Map<String, String> answered = new HashMap<String, String>();
+        serverStatuses = new String[nodes.size()];
+        String firstError = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            try {
+                String status = checks.get(i).get();
+                answered.put(nodes.get(i), status);
+                serverStatuses[i] = nodes.get(i) + ": " + status;
+            } catch (ExecutionException e) {
+                String error = PAMExecuteProcessBulk.message(e.getCause());
+                serverStatuses[i] = nodes.get(i) + ": " + error;
+                if (firstError == null) {
+                    firstError = error;
+                }
+            } catch (InterruptedException e) {
+                for (CompletableFuture<String> check : checks) {
+                    check.cancel(false);
+                }
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted while checking the nodes of [" + router.getDomainUrls() + "]");
+            }
+        }
+        for (String node : router.rank()) {
+            if (answered.containsKey(node)) {
+                serverUrl = node;
+                serverStatus = answered.get(node);
+                return;
+            }
+        }
+        throw new Exception("No node of [" + router.getDomainUrls() + "] answered. First error: " + firstError);
+    }
 
-        SOAPBody soapBody = envelope.getBody();
-        SOAPElement soapBodyElem = soapBody.addChildElement("checkServerStatus", "itp");
-        SOAPElement soapBodyElemAuth = soapBodyElem.addChildElement("auth", "itp");
-        SOAPElement soapBodyElemUser = soapBodyElemAuth.addChildElement("user", "itp");
-        soapBodyElemUser.addTextNode(username);
-        SOAPElement soapBodyElemPass = soapBodyElemAuth.addChildElement("password", "itp");
-        soapBodyElemPass.addTextNode(password != null ? password.getPassword() : "");
-        soapMessage.saveChanges();
+    private PamClient createClient(String domainUrl) {
+        return PamClient.create(domainUrl, username, password != null ? password.getPassword() : "");
+    }
 
-        return soapMessage;
+    /** Create the SOAP Request message */
+    private PamRequest createSoapRequest(PamClient client) throws Exception {
+        return client.checkServerStatusRequest();
     }
 
     /** Process the SOAP response and retrieve items of interest */
-    private void processSoapResponse(SOAPMessage soapResponse) throws Exception {        
-        XPathFactory factory=XPathFactory.newInstance();
-        XPath xPath=factory.newXPath();
-        serverStatus = xPath.evaluate("//*[local-name()='serverStatus']/text()", soapResponse.getSOAPBody());           
+    private void processSoapResponse(PamResponse soapResponse) throws Exception {
+        serverStatus = soapResponse.getServerStatus();
     }
 }
\ No newline at end of file
@@ -2,15 +2,16 @@ package com.nolio.actions.pam;
 
 import com.nolio.platform.shared.api.*;
 
-import javax.xml.soap.*;
-import javax.xml.xpath.*;
-
 /** @author kouth01 */
 @ActionDescriptor(name = "PAM - Start Process", description = "This action starts a PAM process and returns the instance ROID", category={"CA Process Automation"})
 
 public class PAMExecuteProcess implements NolioAction {
 
     private static final long serialVersionUID = 2000L;
+
+    static {
+        PamXml.warmUp();
+    }
     
     @ParameterDescriptor(name="Username", description="PAM login username", out=false, in=true, order=1)
     private String username="";
@@ -18,24 +19,39 @@ public class PAMExecuteProcess implements NolioAction {
     @ParameterDescriptor(name="Password", description="PAM login password", out=false, in=true, order=2)    
     private Password password;    
 
-    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam", out=false, in=true, order=3)  
+    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam, or a comma-separated list of the nodes of a cluster; the process is started on the least loaded node that can be reached", out=false, in=true, order=3)  
     private String domainUrl="";                  
 
     @ParameterDescriptor(name="Process (Full Path)", description="Full path to process", out=false, in=true, order=4)  
     private String processPath="";         
 
-    @ParameterDescriptor(name="Parameters", description="Array of parameters (in the format of name:value) to pass to process", out=false, in=true, order=5)  
+    @ParameterDescriptor(name="Parameters", description="Array of parameters (in the format of name:value) to pass to process", out=false, in=true, nullable=true, order=5)  
     private String[] processParams;         
     
+    @ParameterDescriptor(name="Parameter Names", description="Optional array of parameter names, paired by position with Parameter Values; values are passed verbatim", out=false, in=true, nullable=true, order=6)
+    private String[] paramNames;
+
+    @ParameterDescriptor(name="Parameter Values", description="Optional array of parameter values, paired by position with Parameter Names", out=false, in=true, nullable=true, order=7)
+    private String[] paramValues;
+
+    @ParameterDescriptor(name="File Parameters", description="Optional array of parameters (in the format of name:path) whose values are streamed from files on the agent", out=false, in=true, nullable=true, order=8)
+    private String[] fileParams;
+
+    @ParameterDescriptor(name="Base64 Encode Files", description="Whether the content of File Parameters is sent base64 encoded rather than as text", out=false, in=true, nullable=true, defaultValueAsString="false", order=9)
+    private Boolean base64Files=false;
+
     @ParameterDescriptor(name="Process Instance ROID", description="ROID of process instance that was started", out=true, in=false)
     private String instanceRoid="";
 
+    @ParameterDescriptor(name="Server URL", description="Domain URL of the node that started the instance", out=true, in=false)
+    private String serverUrl="";
+
     @Override
     public ActionResult executeAction() {
         try {
         	makeSoapCall();
-        	_log.info("Process [" + processPath + "] started on [" + domainUrl + "] with Instance ROID: " + instanceRoid);
-        	return new ActionResult(true, "Process [" + processPath + "] started on [" + domainUrl + "] with Instance ROID: " + instanceRoid);
+        	_log.info("Process [" + processPath + "] started on [" + serverUrl + "] with Instance ROID: " + instanceRoid);
+        	return new ActionResult(true, "Process [" + processPath + "] started on [" + serverUrl + "] with Instance ROID: " + instanceRoid);
         } catch (Exception e) {
         	_log.error(e.getMessage());
         	return new ActionResult(false, e.getMessage());
@@ -44,73 +60,25 @@ public class PAMExecuteProcess implements NolioAction {
     
     /** Send SOAP request and redirect exceptions */
     public void makeSoapCall() throws Exception {
-        // Create SOAP Connection
-        SOAPConnectionFactory soapConnectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection soapConnection = soapConnectionFactory.createConnection();
-
-        String url = domainUrl + "/soap";
-        SOAPMessage soapResponse;
-        try {
-        	 soapResponse = soapConnection.call(createSoapRequest(), url);
-        } catch (Exception e) {
-        	if (e.getMessage().contains("Message send failed")) {
-        		throw new Exception("Unable to connect to [" + domainUrl + "]. Please verify host and port.");
-        	}
-        	throw new Exception("SOAP Call Exception: " + e.getMessage());
-        }        
-        
-        if (soapResponse.getSOAPBody().hasFault()) {
-        	SOAPFault fault = soapResponse.getSOAPBody().getFault();
-        	throw new Exception("SOAP Fault Received: " + fault.getFaultString());
-        }
-
+        PamClient client = createClient();
+        PamResponse soapResponse = client.send(createSoapRequest(client));
+        long start = System.nanoTime();
         processSoapResponse(soapResponse);
-        soapConnection.close();
+        serverUrl = instanceRoid != null && instanceRoid.length() > 0 ? client.getDomainUrl(instanceRoid) : "";
+        client.getMetrics().since(PamMetrics.Phase.PROCESS, start);
     }
 
-    /** Create the SOAP Request message */ 
-    private SOAPMessage createSoapRequest() throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage soapMessage = messageFactory.createMessage();
-
-        MimeHeaders headers = soapMessage.getMimeHeaders();
-        headers.addHeader("SOAPAction", "ExecuteC2OFlow");        
-        
-        SOAPEnvelope envelope = soapMessage.getSOAPPart().getEnvelope();
-        envelope.addNamespaceDeclaration("itp", "http://www.ca.com/itpam");
-
-        SOAPBody soapBody = envelope.getBody();
-        SOAPElement soapBodyElem = soapBody.addChildElement("executeProcess", "itp");
-        SOAPElement soapBodyElemFlow = soapBodyElem.addChildElement("flow", "itp");
-        SOAPElement soapBodyElemName = soapBodyElemFlow.addChildElement("name", "itp");
-        soapBodyElemName.addTextNode(processPath);        
-        SOAPElement soapBodyElemAction = soapBodyElemFlow.addChildElement("action", "itp");        
-        soapBodyElemAction.addTextNode("start");        
-        
-        SOAPElement soapBodyElemAuth = soapBodyElemFlow.addChildElement("auth", "itp");
-        SOAPElement soapBodyElemUser = soapBodyElemAuth.addChildElement("user", "itp");
-        soapBodyElemUser.addTextNode(username);
-        SOAPElement soapBodyElemPass = soapBodyElemAuth.addChildElement("password", "itp");
-        soapBodyElemPass.addTextNode(password != null ? password.getPassword() : "");
-        
-        SOAPElement soapBodyElemParams = soapBodyElemFlow.addChildElement("params", "itp");   
-        SOAPElement soapBodyElemParam;
-        for (int i = 0; i < processParams.length; i++) {
-        	String[] splitString = (processParams[i].split(":"));
-	        soapBodyElemParam = soapBodyElemParams.addChildElement("param", "itp");
-	        soapBodyElemParam.setAttribute("name", splitString[0]);
-	        soapBodyElemParam.addTextNode(splitString[1]);
-        }
-                
-        soapMessage.saveChanges();
+    private PamClient createClient() {
+        return PamClient.create(domainUrl, username, password != null ? password.getPassword() : "");
+    }
 
-        return soapMessage;
+    /** Create the SOAP Request message */ 
+    private PamRequest createSoapRequest(PamClient client) throws Exception {
+        return client.executeProcessRequest(processPath, processParams, paramNames, paramValues, fileParams, Boolean.TRUE.equals(base64Files));
     }
 
     /** Process the SOAP response and retrieve items of interest */
-    private void processSoapResponse(SOAPMessage soapResponse) throws Exception {
-        XPathFactory factory=XPathFactory.newInstance();
-        XPath xPath=factory.newXPath();
-        instanceRoid = xPath.evaluate("//*[local-name()='ROID']/text()", soapResponse.getSOAPBody());
+    private void processSoapResponse(PamResponse soapResponse) throws Exception {
+        instanceRoid = soapResponse.getInstanceRoid();
     }
 }
\ No newline at end of file
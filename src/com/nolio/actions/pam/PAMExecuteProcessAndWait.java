@@ -0,0 +1,267 @@
+package com.nolio.actions.pam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import com.nolio.platform.shared.api.*;
+
+/** Starts a PAM process, or a group of instances of it, and waits for the instances to end */
+@ActionDescriptor(name = "PAM - Start Process And Wait", description = "This action starts a PAM process, or one instance per parameter set, and waits for all or any of the instances to end, returning their status and dataset", category={"CA Process Automation"})
+
+public class PAMExecuteProcessAndWait implements NolioAction {
+
+    private static final long serialVersionUID = 2000L;
+
+    static {
+        PamXml.warmUp();
+    }
+
+    @ParameterDescriptor(name="Username", description="PAM login username", out=false, in=true, order=1)
+    private String username="";
+
+    @ParameterDescriptor(name="Password", description="PAM login password", out=false, in=true, order=2)    
+    private Password password;    
+
+    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam, or a comma-separated list of the nodes of a cluster", out=false, in=true, order=3)  
+    private String domainUrl="";                  
+
+    @ParameterDescriptor(name="Process (Full Path)", description="Full path to process", out=false, in=true, order=4)  
+    private String processPath="";         
+
+    @ParameterDescriptor(name="Parameters", description="Array of parameters (in the format of name:value) to pass to process", out=false, in=true, nullable=true, order=5)  
+    private String[] processParams;         
+
+    @ParameterDescriptor(name="Parameter Sets", description="Optional array of parameter sets; when given, one instance is started per set instead. Each set is a list of name:value parameters joined by the parameter separator", out=false, in=true, nullable=true, order=6)  
+    private String[] parameterSets;
+
+    @ParameterDescriptor(name="Parameter Separator", description="Separator between the name:value parameters of a set", out=false, in=true, nullable=true, defaultValueAsString=";", order=7)
+    private String parameterSeparator=";";
+
+    @ParameterDescriptor(name="Await Mode", description="All - wait for every instance to end; Any - wait for the first instance to end", out=false, in=true, nullable=true, defaultValueAsString="All", order=8)
+    private String awaitMode="All";
+
+    @ParameterDescriptor(name="Polling Period (Seconds)", description="Longest interval (in seconds) between status checks; checks start sub-second and back off to this period", out=false, in=true, nullable=true, defaultValueAsString="30", order=9)
+    private Integer pollingSeconds=30;
+
+    @ParameterDescriptor(name="Timeout (Seconds)", description="How long (in seconds) to wait, overall, for the instances to end before timing out", out=false, in=true, nullable=true, defaultValueAsString="600", order=10)
+    private Integer timeoutSeconds=600;
+
+    @ParameterDescriptor(name="Process Instance ROID", description="ROID of the first instance, or of the instance that ended first in Any mode", out=true, in=false)
+    private String instanceRoid="";
+
+    @ParameterDescriptor(name="Process Instance Status", description="Status of the first instance, or of the instance that ended first in Any mode", out=true, in=false)
+    private String instanceStatus="";
+
+    @ParameterDescriptor(name="Process Instance Dataset", description="Dataset of the first instance, or of the instance that ended first in Any mode", out=true, in=false)
+    private String processDataset="";
+
+    @ParameterDescriptor(name="Process Instance ROIDs", description="ROIDs of all instances, in the order of the parameter sets (empty where a start failed)", out=true, in=false)
+    private String[] instanceRoids;
+
+    @ParameterDescriptor(name="Process Instance Statuses", description="Last known status of all instances, in the order of the parameter sets (the error where a start or a status check failed)", out=true, in=false)
+    private String[] instanceStatuses;
+
+    @Override
+    public ActionResult executeAction() {
+        List<String[]> launches = new ArrayList<String[]>();
+        if (parameterSets != null && parameterSets.length > 0) {
+            for (int i = 0; i < parameterSets.length; i++) {
+                launches.add(PAMExecuteProcessBulk.splitParameterSet(parameterSets[i], parameterSeparator));
+            }
+        } else {
+            launches.add(processParams != null ? processParams : new String[0]);
+        }
+        boolean awaitAny = "Any".equalsIgnoreCase(awaitMode != null ? awaitMode.trim() : "");
+        long pollingMillis = (pollingSeconds != null && pollingSeconds > 0 ? pollingSeconds : 30) * 1000L;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds != null ? timeoutSeconds : 600);
+        int count = launches.size();
+        instanceRoids = new String[count];
+        instanceStatuses = new String[count];
+
+        PamWait[] waits = new PamWait[count];
+        try {
+            PamClient client = PamClient.create(domainUrl, username, password != null ? password.getPassword() : "");
+            start(client, launches, deadline);
+            PamPollingPolicy policy = PamPollingPolicy.adaptive(pollingMillis, domainUrl, processPath);
+            for (int i = 0; i < count; i++) {
+                if (instanceRoids[i].length() > 0) {
+                    waits[i] = client.submitWait(instanceRoids[i], client.getProcessStatusRequest(instanceRoids[i], null, null), policy,
+                            remainingMillis(deadline));
+                }
+            }
+
+            PamWait result = null;
+            if (awaitAny) {
+                result = awaitAny(waits, deadline);
+            } else {
+                awaitAll(waits);
+            }
+            int ended = 0;
+            int failed = 0;
+            for (int i = 0; i < count; i++) {
+                if (waits[i] == null || isFailed(waits[i])) {
+                    failed++;
+                }
+                if (waits[i] != null) {
+                    instanceStatuses[i] = status(waits[i]);
+                    if (waits[i].isEnded()) {
+                        ended++;
+                    }
+                    if (result == null) {
+                        result = waits[i];
+                    }
+                }
+            }
+            if (result != null) {
+                instanceRoid = result.getInstanceRoid();
+                instanceStatus = status(result);
+                processDataset = formatDataset(result.getLastResponse());
+            }
+
+            String summary = ended + " of " + count + " instance(s) of process [" + processPath + "] on [" + domainUrl + "] ended"
+                    + (failed > 0 ? ", " + failed + " could not be started or checked" : "");
+            _log.info(summary);
+            if (awaitAny ? ended > 0 : ended == count) {
+                return new ActionResult(true, count == 1
+                        ? "Process Instance [" + instanceRoid + "] on [" + domainUrl + "] ended with status: " + instanceStatus
+                        : summary);
+            }
+            return new ActionResult(false, summary + (ended + failed < count ? " within [" + timeoutSeconds + "] seconds timeout period" : "")
+                    + ".  Last status was: " + instanceStatus);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ActionResult(false, "Interrupted while waiting for process [" + processPath + "] on [" + domainUrl + "]");
+        } catch (Exception e) {
+            _log.error(e.getMessage());
+            return new ActionResult(false, e.getMessage());
+        } finally {
+            for (int i = 0; i < count; i++) {
+                if (waits[i] != null) {
+                    waits[i].cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start every instance, concurrently on the shared client pool when there are several,
+     * each start request bounded by the overall deadline; records ROIDs, or errors as statuses
+     */
+    private void start(PamClient client, List<String[]> launches, long deadline) throws Exception {
+        int count = launches.size();
+        if (count == 1) {
+            instanceRoids[0] = client.send(client.executeProcessRequest(processPath, launches.get(0), null, null, null, false),
+                    readTimeoutMillis(deadline)).getInstanceRoid();
+            instanceStatuses[0] = "";
+            return;
+        }
+
+        List<CompletableFuture<PamResponse>> starts = new ArrayList<CompletableFuture<PamResponse>>(count);
+        for (int i = 0; i < count; i++) {
+            starts.add(client.sendAsync(client.executeProcessRequest(processPath, launches.get(i), null, null, null, false),
+                    readTimeoutMillis(deadline)));
+        }
+        int failed = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    instanceRoids[i] = starts.get(i).get().getInstanceRoid();
+                    instanceStatuses[i] = "";
+                } catch (ExecutionException e) {
+                    instanceRoids[i] = "";
+                    instanceStatuses[i] = PAMExecuteProcessBulk.message(e.getCause());
+                    failed++;
+                }
+            }
+        } finally {
+            for (CompletableFuture<PamResponse> start : starts) {
+                start.cancel(false);
+            }
+        }
+        if (failed == count) {
+            throw new Exception("No instance of process [" + processPath + "] could be started on [" + domainUrl + "]: " + instanceStatuses[0]);
+        }
+    }
+
+    /** Wait for every instance; each wait carries the overall deadline itself, and one that fails is reported by {@link #status(PamWait)} */
+    private static void awaitAll(PamWait[] waits) throws InterruptedException {
+        for (int i = 0; i < waits.length; i++) {
+            if (waits[i] != null) {
+                try {
+                    waits[i].await();
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // reported per instance
+                }
+            }
+        }
+    }
+
+    /** Wait for the first instance to end, or for all of them to stop being tracked, or for the deadline */
+    private PamWait awaitAny(PamWait[] waits, long deadline) throws Exception {
+        final CompletableFuture<PamWait> firstEnded = new CompletableFuture<PamWait>();
+        List<CompletableFuture<PamWait>> all = new ArrayList<CompletableFuture<PamWait>>();
+        for (int i = 0; i < waits.length; i++) {
+            if (waits[i] != null) {
+                CompletableFuture<PamWait> done = waits[i].whenDone();
+                all.add(done);
+                done.thenAccept(new Consumer<PamWait>() {
+                    @Override
+                    public void accept(PamWait wait) {
+                        if (wait.isEnded()) {
+                            firstEnded.complete(wait);
+                        }
+                    }
+                });
+            }
+        }
+        CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).whenComplete(
+                new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void result, Throwable failure) {
+                        firstEnded.complete(null);
+                    }
+                });
+        try {
+            return firstEnded.get(remainingMillis(deadline) + PamWaitScheduler.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        }
+    }
+
+    private static boolean isFailed(PamWait wait) {
+        return wait.whenDone().isCompletedExceptionally() && !wait.whenDone().isCancelled();
+    }
+
+    /** Last known status of an instance, or the error its status poll failed with */
+    private static String status(PamWait wait) {
+        if (isFailed(wait)) {
+            try {
+                wait.await();
+            } catch (Exception e) {
+                return PAMExecuteProcessBulk.message(e);
+            }
+        }
+        return wait.getInstanceStatus();
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /** Read timeout of a start request, so that it cannot outlast the overall deadline */
+    private static int readTimeoutMillis(long deadline) {
+        return (int) Math.max(1, Math.min(PamTransport.READ_TIMEOUT_MILLIS, remainingMillis(deadline)));
+    }
+
+    private static String formatDataset(PamResponse response) {
+        return response != null ? response.getDataset().toText() : "";
+    }
+}
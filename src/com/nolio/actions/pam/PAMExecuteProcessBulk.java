@@ -0,0 +1,170 @@
+package com.nolio.actions.pam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import com.nolio.platform.shared.api.*;
+
+/** Starts the same PAM process once per parameter set, several at a time */
+@ActionDescriptor(name = "PAM - Start Process (Bulk)", description = "This action starts a PAM process once for each parameter set, with bounded concurrency, and returns the instance ROIDs in input order", category={"CA Process Automation"})
+
+public class PAMExecuteProcessBulk implements NolioAction {
+
+    private static final long serialVersionUID = 2000L;
+
+    static {
+        PamXml.warmUp();
+    }
+
+    @ParameterDescriptor(name="Username", description="PAM login username", out=false, in=true, order=1)
+    private String username="";
+
+    @ParameterDescriptor(name="Password", description="PAM login password", out=false, in=true, order=2)    
+    private Password password;    
+
+    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam, or a comma-separated list of the nodes of a cluster", out=false, in=true, order=3)  
+    private String domainUrl="";                  
+
+    @ParameterDescriptor(name="Process (Full Path)", description="Full path to process", out=false, in=true, order=4)  
+    private String processPath="";         
+
+    @ParameterDescriptor(name="Parameter Sets", description="Array of parameter sets, one process instance per set. Each set is a list of name:value parameters joined by the parameter separator", out=false, in=true, order=5)  
+    private String[] parameterSets;
+
+    @ParameterDescriptor(name="Parameter Separator", description="Separator between the name:value parameters of a set", out=false, in=true, nullable=true, defaultValueAsString=";", order=6)
+    private String parameterSeparator=";";
+
+    @ParameterDescriptor(name="Parallelism", description="Maximum number of process starts in flight at once", out=false, in=true, nullable=true, defaultValueAsString="4", order=7)
+    private Integer parallelism=4;
+
+    @ParameterDescriptor(name="Request Timeout (Seconds)", description="How long (in seconds) to wait for each start request to be sent and answered, including time queued behind other calls to the server", out=false, in=true, nullable=true, defaultValueAsString="60", order=8)
+    private Integer requestTimeoutSeconds=60;
+
+    @ParameterDescriptor(name="Process Instance ROIDs", description="ROIDs of the process instances that were started, in the order of the parameter sets (empty where a start failed)", out=true, in=false)
+    private String[] instanceRoids;
+
+    @ParameterDescriptor(name="Errors", description="Error of each parameter set, in the order of the parameter sets (empty where the start succeeded)", out=true, in=false)
+    private String[] errors;
+
+    @Override
+    public ActionResult executeAction() {
+        String[] sets = parameterSets != null ? parameterSets : new String[0];
+        instanceRoids = new String[sets.length];
+        errors = new String[sets.length];
+        if (sets.length == 0) {
+            return new ActionResult(true, "No parameter sets given, no instance of process [" + processPath + "] started");
+        }
+
+        final Semaphore window = new Semaphore(Math.min(sets.length, parallelism != null && parallelism > 0 ? parallelism : 4));
+        List<CompletableFuture<PamResponse>> launches = new ArrayList<CompletableFuture<PamResponse>>(sets.length);
+        int failed = 0;
+        try {
+            PamClient client = PamClient.create(domainUrl, username, password != null ? password.getPassword() : "");
+            int timeoutMillis = (requestTimeoutSeconds != null && requestTimeoutSeconds > 0 ? requestTimeoutSeconds : 60) * 1000;
+            for (int i = 0; i < sets.length; i++) {
+                PamRequest request;
+                try {
+                    request = createSoapRequest(client, sets[i]);
+                } catch (Exception e) {
+                    launches.add(null);
+                    errors[i] = "Invalid parameter set [" + sets[i] + "]: " + message(e);
+                    continue;
+                }
+                // at most Parallelism starts in flight, on the shared client pool
+                window.acquire();
+                CompletableFuture<PamResponse> launch = client.sendAsync(request, timeoutMillis);
+                launch.whenComplete(new BiConsumer<PamResponse, Throwable>() {
+                    @Override
+                    public void accept(PamResponse response, Throwable failure) {
+                        window.release();
+                    }
+                });
+                launches.add(launch);
+            }
+            for (int i = 0; i < sets.length; i++) {
+                if (launches.get(i) == null) {
+                    instanceRoids[i] = "";
+                    failed++;
+                    continue;
+                }
+                try {
+                    instanceRoids[i] = launches.get(i).get().getInstanceRoid();
+                    errors[i] = "";
+                } catch (ExecutionException e) {
+                    instanceRoids[i] = "";
+                    errors[i] = message(e.getCause());
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ActionResult(false, "Interrupted while starting instances of process [" + processPath + "] on [" + domainUrl + "]");
+        } catch (Exception e) {
+            _log.error(e.getMessage());
+            return new ActionResult(false, e.getMessage());
+        } finally {
+            for (CompletableFuture<PamResponse> launch : launches) {
+                if (launch != null) {
+                    launch.cancel(false);
+                }
+            }
+        }
+
+        String summary = (sets.length - failed) + " of " + sets.length + " instances of process [" + processPath + "] started on [" + domainUrl + "]";
+        _log.info(summary);
+        if (failed > 0) {
+            for (int i = 0; i < errors.length; i++) {
+                if (errors[i].length() > 0) {
+                    _log.error("Parameter set " + (i + 1) + ": " + errors[i]);
+                }
+            }
+            return new ActionResult(false, summary + ". First error: " + firstError());
+        }
+        return new ActionResult(true, summary);
+    }
+
+    /** Create the SOAP Request message for one parameter set */
+    private PamRequest createSoapRequest(PamClient client, String parameterSet) throws Exception {
+        String[] processParams = splitParameterSet(parameterSet, parameterSeparator);
+        return client.executeProcessRequest(processPath, processParams, null, null, null, false);
+    }
+
+    /** Split a parameter set into its name:value parameters; the separator defaults to ; */
+    static String[] splitParameterSet(String parameterSet, String parameterSeparator) {
+        List<String> params = new ArrayList<String>();
+        if (parameterSet != null) {
+            String separator = parameterSeparator != null && parameterSeparator.length() > 0 ? parameterSeparator : ";";
+            int start = 0;
+            while (start <= parameterSet.length()) {
+                int end = parameterSet.indexOf(separator, start);
+                if (end < 0) {
+                    end = parameterSet.length();
+                }
+                String param = parameterSet.substring(start, end).trim();
+                if (param.length() > 0) {
+                    params.add(param);
+                }
+                start = end + separator.length();
+            }
+        }
+        return params.toArray(new String[params.size()]);
+    }
+
+    /** Message of a failed start, falling back to the exception itself when it has none */
+    static String message(Throwable cause) {
+        return cause.getMessage() != null ? cause.getMessage() : String.valueOf(cause);
+    }
+
+    private String firstError() {
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i].length() > 0) {
+                return errors[i];
+            }
+        }
+        return "";
+    }
+}
@@ -1,22 +1,17 @@
 package com.nolio.actions.pam;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import com.nolio.platform.shared.api.*;
 
-import javax.xml.soap.*;
-import javax.xml.xpath.*;
-
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
 /** @author kouth01 */
 @ActionDescriptor(name = "PAM - Get Process Status", description = "This action returns the status and dataset of a PAM process instance", category={"CA Process Automation"})
 
 public class PAMGetProcessStatus implements NolioAction {
 	
     private static final long serialVersionUID = 2000L;
+
+    static {
+        PamXml.warmUp();
+    }
     
     @ParameterDescriptor(name="Username", description="PAM login username", out=false, in=true, order=1)
     private String username="";
@@ -24,17 +19,26 @@ public class PAMGetProcessStatus implements NolioAction {
     @ParameterDescriptor(name="Password", description="PAM login password", out=false, in=true, order=2)    
     private Password password;    
 
-    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam", out=false, in=true, order=3)  
+    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam, or a comma-separated list of the nodes of a cluster", out=false, in=true, order=3)  
     private String domainUrl="";          
 
     @ParameterDescriptor(name="Process Instance ROID", description="ROID of process instance to check", out=false, in=true, order=5)
     private String instanceRoid="";
     
+    @ParameterDescriptor(name="Dataset Keys", description="Optional array of dataset parameter names to retrieve; other parameters are skipped", out=false, in=true, nullable=true, order=6)
+    private String[] datasetKeys;
+
+    @ParameterDescriptor(name="Dataset Key Pattern", description="Optional regular expression; dataset parameters whose names match it are retrieved as well", out=false, in=true, nullable=true, defaultValueAsString="", order=7)
+    private String datasetKeyPattern="";
+
     @ParameterDescriptor(name="Process Instance Status", description="Status of process instance", out=true, in=false)
     private String instanceStatus="";
 
     @ParameterDescriptor(name="Process Instance Dataset", description="Dataset of process instance", out=true, in=false)
     private String[] processDataset;
+
+    @ParameterDescriptor(name="Selected Values", description="Values of the Dataset Keys, in the same order (empty where the dataset has no such parameter)", out=true, in=false)
+    private String[] selectedValues;
     
     @Override
     public ActionResult executeAction() {
@@ -48,93 +52,28 @@ public class PAMGetProcessStatus implements NolioAction {
     
     /** Send SOAP request and redirect exceptions */
     public void makeSoapCall() throws Exception {
-        // Create SOAP Connection
-        SOAPConnectionFactory soapConnectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection soapConnection = soapConnectionFactory.createConnection();
-
-        String url = domainUrl + "/soap";
-        SOAPMessage soapResponse;
-        try {
-        	 soapResponse = soapConnection.call(createSoapRequest(), url);
-        } catch (Exception e) {
-        	if (e.getMessage().contains("Message send failed")) {
-        		throw new Exception("Unable to connect to [" + domainUrl + "]. Please verify host and port.");
-        	}
-        	throw new Exception("SOAP Call Exception: " + e.getMessage());
-        }        
-        
-        if (soapResponse.getSOAPBody().hasFault()) {
-        	SOAPFault fault = soapResponse.getSOAPBody().getFault();
-        	throw new Exception("SOAP Fault Received: " + fault.getFaultString());
-        }
-
+        PamClient client = createClient();
+        PamResponse soapResponse = client.getStatus(instanceRoid, createSoapRequest(client));
+        long start = System.nanoTime();
         processSoapResponse(soapResponse);
-        soapConnection.close();
+        client.getMetrics().since(PamMetrics.Phase.PROCESS, start);
     }
 
-    /** Create the SOAP Request message */  
-    private SOAPMessage createSoapRequest() throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage soapMessage = messageFactory.createMessage();
-
-        MimeHeaders headers = soapMessage.getMimeHeaders();
-        headers.addHeader("SOAPAction", "GetFlowState");
-        
-        SOAPEnvelope envelope = soapMessage.getSOAPPart().getEnvelope();
-        envelope.addNamespaceDeclaration("itp", "http://www.ca.com/itpam");
-
-
-        SOAPBody soapBody = envelope.getBody();
-        SOAPElement soapBodyElem = soapBody.addChildElement("getProcessStatus", "itp");
-        SOAPElement soapBodyElemFlow = soapBodyElem.addChildElement("flow", "itp");
-        SOAPElement soapBodyElemROID = soapBodyElemFlow.addChildElement("ROID", "itp");
-        soapBodyElemROID.addTextNode(instanceRoid);        
-        SOAPElement soapBodyElemAction = soapBodyElemFlow.addChildElement("action", "itp");        
-        soapBodyElemAction.addTextNode("check");        
-        
-        SOAPElement soapBodyElemAuth = soapBodyElemFlow.addChildElement("auth", "itp");
-        SOAPElement soapBodyElemUser = soapBodyElemAuth.addChildElement("user", "itp");
-        soapBodyElemUser.addTextNode(username);
-        SOAPElement soapBodyElemPass = soapBodyElemAuth.addChildElement("password", "itp");
-        soapBodyElemPass.addTextNode(password != null ? password.getPassword() : "");
-        soapMessage.saveChanges();
+    private PamClient createClient() {
+        return PamClient.create(domainUrl, username, password != null ? password.getPassword() : "");
+    }
 
-        return soapMessage;
+    /** Create the SOAP Request message */  
+    private PamRequest createSoapRequest(PamClient client) throws Exception {
+        return client.getProcessStatusRequest(instanceRoid, datasetKeys, datasetKeyPattern);
     }
 
     /** Process the SOAP response and retrieve items of interest */
-    private void processSoapResponse(SOAPMessage soapResponse) throws Exception {
-        XPathFactory factory=XPathFactory.newInstance();
-        XPath xPath=factory.newXPath();
-        instanceStatus = xPath.evaluate("//*[local-name()='flow-state']/text()", soapResponse.getSOAPBody());
+    private void processSoapResponse(PamResponse soapResponse) throws Exception {
+        instanceStatus = soapResponse.getFlowState();
 
         // Get names/values of all dataset parameters
-        String name;
-        String value;      
-        XPathExpression nameExpression=xPath.compile("./@name");
-        XPathExpression valueExpression=xPath.compile("./text()");
-        Object result = xPath.evaluate("//*[local-name()='params']/*[local-name()='param']", soapResponse.getSOAPBody(), XPathConstants.NODESET);
-        NodeList params = (NodeList) result;
-
-        List<String> ds = new ArrayList<String>();     
-        
-        for (int i = 0; i < params.getLength(); i++) {
-            Node n = (Node) params.item(i);
-            if (n != null && n.getNodeType() == Node.ELEMENT_NODE) {
-                Element param = (Element) n;
-                name = nameExpression.evaluate(param);
-                value = valueExpression.evaluate(param);
-                ds.add(name + ":" + value);
-                //if (processDataset.equals(""))
-                //{
-                //    processDataset = name + ":" + value;                                          	                
-                //} else {
-                //    processDataset += "\n" + name + ":" + value;                                          	                
-                //}
-            }
-        }
-        processDataset = new String[ds.size()];
-        ds.toArray(processDataset);        
-        
+        processDataset = soapResponse.getDataset().toArray();
+        selectedValues = PamDatasetFilter.select(soapResponse.getDataset(), datasetKeys);
     }
 }
\ No newline at end of file
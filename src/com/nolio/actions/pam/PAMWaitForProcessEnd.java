@@ -1,12 +1,8 @@
 package com.nolio.actions.pam;
 
-import com.nolio.platform.shared.api.*;
-
-import javax.xml.soap.*;
-import javax.xml.xpath.*;
+import java.util.List;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import com.nolio.platform.shared.api.*;
 
 /** @author kouth01 */
 @ActionDescriptor(name = "PAM - Wait For Process End", description = "This action waits for a defined period of time for a PAM process instance to end, returning the status and dataset of that instance", category={"CA Process Automation"})
@@ -14,10 +10,13 @@ import org.w3c.dom.NodeList;
 public class PAMWaitForProcessEnd implements NolioAction {
 	
     private static final long serialVersionUID = 2000L;
+
+    static {
+        PamXml.warmUp();
+    }
     private boolean processEnded = false;
-    private SOAPMessage soapMessage = null;
-    private XPath xPath = null;
-    private SOAPMessage lastSoapResponse;
+    private transient PamRequest soapRequest = null;
+    private transient PamResponse lastSoapResponse;
     
     @ParameterDescriptor(name="Username", description="PAM login username", out=false, in=true, order=1)
     private String username="";
@@ -25,9 +24,12 @@ public class PAMWaitForProcessEnd implements NolioAction {
     @ParameterDescriptor(name="Password", description="PAM login password", out=false, in=true, order=2)    
     private Password password;    
 
-    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam", out=false, in=true, order=3)  
+    @ParameterDescriptor(name="Domain URL", description="Example - http://pamserver:8080/itpam, or a comma-separated list of the nodes of a cluster", out=false, in=true, order=3)  
     private String domainUrl="";                 
 
+    @ParameterDescriptor(name="Process (Full Path)", description="Full path to the process of the instance, used by adaptive polling to learn typical durations", out=false, in=true, nullable=true, defaultValueAsString="", order=4)
+    private String processPath="";
+
     @ParameterDescriptor(name="Process Instance ROID", description="ROID of process instance to check", out=false, in=true, order=5)
     private String instanceRoid="";
     
@@ -37,40 +39,74 @@ public class PAMWaitForProcessEnd implements NolioAction {
     @ParameterDescriptor(name="Timeout (Seconds)", description="How long (in seconds) to wait for process to end before timing out", out=false, in=true, nullable=true, defaultValueAsString="600", order=7)
     private Integer timeoutSeconds=600;
     
+    @ParameterDescriptor(name="Adaptive Polling", description="Start polling sub-second and back off with jitter up to the polling period, instead of polling at a fixed period", out=false, in=true, nullable=true, defaultValueAsString="false", order=8)
+    private Boolean adaptivePolling=false;
+
+    @ParameterDescriptor(name="Dataset Keys", description="Optional array of dataset parameter names to retrieve; other parameters are skipped", out=false, in=true, nullable=true, order=9)
+    private String[] datasetKeys;
+
+    @ParameterDescriptor(name="Dataset Key Pattern", description="Optional regular expression; dataset parameters whose names match it are retrieved as well", out=false, in=true, nullable=true, defaultValueAsString="", order=10)
+    private String datasetKeyPattern="";
+
+    @ParameterDescriptor(name="Completion Callback", description="Complete as soon as the process notifies the agent's callback endpoint (pam.callback.port, pam.callback.token) that it ended, polling only as a slow safety net", out=false, in=true, nullable=true, defaultValueAsString="false", order=11)
+    private Boolean completionCallback=false;
+
     @ParameterDescriptor(name="Process Instance Status", description="Status of process instance", out=true, in=false)
     private String instanceStatus="";
 
     @ParameterDescriptor(name="Process Instance Dataset", description="Dataset of process instance", out=true, in=false)
     private String processDataset="";
+
+    @ParameterDescriptor(name="Selected Values", description="Values of the Dataset Keys, in the same order (empty where the dataset has no such parameter)", out=true, in=false)
+    private String[] selectedValues;
+
+    @ParameterDescriptor(name="State Transitions", description="Each status seen while waiting, with the time it was first seen, e.g. 2024-01-31T10:15:02.250+0000 Running", out=true, in=false)
+    private String[] stateTransitions;
     
     @Override
     public ActionResult executeAction()  {
-    	Integer sleepSeconds;
-    	Integer timeoutSecondsLeft = timeoutSeconds;
-    	
-	    try {
-	       	while (!processEnded && timeoutSecondsLeft > 0) {
-
-   	        	makeSoapCall();
-   	   			if ("Completed".equals(instanceStatus) || "Failed".equals(instanceStatus) || "Aborted".equals(instanceStatus)) {
-   	   				processEnded = true;
-   	   				break;
-   	   			}
-   	   	   		
-   	   			sleepSeconds = Math.min(timeoutSecondsLeft,  pollingSeconds);
-   	   			try {
-   	   				Thread.sleep(sleepSeconds * 1000);
-   	   			} catch (InterruptedException e) {
-   	   			}
-   	   			timeoutSecondsLeft -= sleepSeconds;  
-   	   	   		System.out.print("\nTimeout Seconds Left = " + timeoutSecondsLeft);
-	       	}
-	       	getProcessDataset(lastSoapResponse);
-   	    }
-	    catch (Exception e) {
-        	return new ActionResult(false, e.getMessage());
+        long pollingMillis = (pollingSeconds != null && pollingSeconds > 0 ? pollingSeconds : 30) * 1000L;
+        long timeoutMillis = (timeoutSeconds != null ? timeoutSeconds : 600) * 1000L;
+
+        PamPollingPolicy policy;
+        if (Boolean.TRUE.equals(completionCallback) && PamCallbackListener.start() != null) {
+            policy = PamPollingPolicy.fixed(Math.max(pollingMillis, PamCallbackListener.SAFETY_NET_MILLIS));
+        } else if (Boolean.TRUE.equals(adaptivePolling)) {
+            policy = PamPollingPolicy.adaptive(pollingMillis, domainUrl, processPath);
+        } else {
+            policy = PamPollingPolicy.fixed(pollingMillis);
+        }
+
+        PamClient client = createClient();
+        PamWait wait;
+        try {
+            wait = client.submitWait(instanceRoid, createSoapRequest(client), policy, timeoutMillis);
+        } catch (Exception e) {
+            return new ActionResult(false, e.getMessage());
         }
-		
+
+        try {
+            wait.await();
+            if (wait.getLastResponse() == null) {
+                processEnded = false;
+                return new ActionResult(false, "No status of Process Instance [" + instanceRoid + "] on [" + domainUrl + "] was received within [" + timeoutSeconds + "] seconds timeout period");
+            }
+            long start = System.nanoTime();
+            lastSoapResponse = wait.getLastResponse();
+            processSoapResponse(lastSoapResponse);
+            processEnded = wait.isEnded();
+            stateTransitions = formatTransitions(wait.getTransitions());
+            getProcessDataset(lastSoapResponse);
+            client.getMetrics().since(PamMetrics.Phase.PROCESS, start);
+            _log.info("Process Instance [" + instanceRoid + "] on [" + domainUrl + "] is " + instanceStatus + " after " + wait.getPollCount() + " status poll(s)");
+        } catch (InterruptedException e) {
+            wait.cancel();
+            Thread.currentThread().interrupt();
+            return new ActionResult(false, "Wait for Process Instance [" + instanceRoid + "] on [" + domainUrl + "] was interrupted.  Last status was: " + wait.getInstanceStatus());
+        } catch (Exception e) {
+            return new ActionResult(false, e.getMessage());
+        }
+
    		if (processEnded) {
    			return new ActionResult(true, "Process Instance [" + instanceRoid + "] on [" + domainUrl + "] ended with status: " + instanceStatus);
    		} else {
@@ -80,93 +116,41 @@ public class PAMWaitForProcessEnd implements NolioAction {
     
     /** Send SOAP request and redirect exceptions */
     public void makeSoapCall() throws Exception {
-        // Create SOAP Connection
-        SOAPConnectionFactory soapConnectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection soapConnection = soapConnectionFactory.createConnection();
+        PamClient client = createClient();
+        PamResponse soapResponse = client.getStatus(instanceRoid, createSoapRequest(client));
+        lastSoapResponse = soapResponse;
+        long start = System.nanoTime();
+        processSoapResponse(soapResponse);
+        client.getMetrics().since(PamMetrics.Phase.PROCESS, start);
+    }
 
-        String url = domainUrl + "/soap";
-        SOAPMessage soapResponse;
-        try {
-        	 soapResponse = soapConnection.call(createSoapRequest(), url);
-        } catch (Exception e) {
-        	if (e.getMessage().contains("Message send failed")) {
-        		throw new Exception("Unable to connect to [" + domainUrl + "]. Please verify host and port.");
-        	}
-        	throw new Exception("SOAP Call Exception: " + e.getMessage());
-        }        
-        
-        if (soapResponse.getSOAPBody().hasFault()) {
-        	SOAPFault fault = soapResponse.getSOAPBody().getFault();
-        	throw new Exception("SOAP Fault Received: " + fault.getFaultString());
+    private static String[] formatTransitions(List<PamWait.Transition> transitions) {
+        String[] lines = new String[transitions.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = transitions.get(i).toString();
         }
+        return lines;
+    }
 
-        lastSoapResponse = soapResponse;
-        processSoapResponse(soapResponse);
-        soapConnection.close();
+    private PamClient createClient() {
+        return PamClient.create(domainUrl, username, password != null ? password.getPassword() : "");
     }
 
     /** Create the SOAP Request message */  
-    private SOAPMessage createSoapRequest() throws Exception {
-    	if (soapMessage != null) {
-    		return soapMessage;
+    private PamRequest createSoapRequest(PamClient client) throws Exception {
+    	if (soapRequest == null) {
+    		soapRequest = client.getProcessStatusRequest(instanceRoid, datasetKeys, datasetKeyPattern);
     	}
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        soapMessage = messageFactory.createMessage();
-        
-        MimeHeaders headers = soapMessage.getMimeHeaders();
-        headers.addHeader("SOAPAction", "GetFlowState");
-        
-        SOAPEnvelope envelope = soapMessage.getSOAPPart().getEnvelope();
-        envelope.addNamespaceDeclaration("itp", "http://www.ca.com/itpam");
-
-        SOAPBody soapBody = envelope.getBody();
-        SOAPElement soapBodyElem = soapBody.addChildElement("getProcessStatus", "itp");
-        SOAPElement soapBodyElemFlow = soapBodyElem.addChildElement("flow", "itp");
-        SOAPElement soapBodyElemROID = soapBodyElemFlow.addChildElement("ROID", "itp");
-        soapBodyElemROID.addTextNode(instanceRoid);        
-        SOAPElement soapBodyElemAction = soapBodyElemFlow.addChildElement("action", "itp");        
-        soapBodyElemAction.addTextNode("check");        
-        
-        SOAPElement soapBodyElemAuth = soapBodyElemFlow.addChildElement("auth", "itp");
-        SOAPElement soapBodyElemUser = soapBodyElemAuth.addChildElement("user", "itp");
-        soapBodyElemUser.addTextNode(username);
-        SOAPElement soapBodyElemPass = soapBodyElemAuth.addChildElement("password", "itp");
-        soapBodyElemPass.addTextNode(password != null ? password.getPassword() : "");
-        soapMessage.saveChanges();
-
-        return soapMessage;
+        return soapRequest;
     }
 
     /** Process the SOAP response and retrieve items of interest */
-    private void processSoapResponse(SOAPMessage soapResponse) throws Exception {     
-        if (xPath == null) {
-        	XPathFactory factory=XPathFactory.newInstance();
-        	xPath=factory.newXPath();
-        }
-        instanceStatus = xPath.evaluate("//*[local-name()='flow-state']/text()", soapResponse.getSOAPBody());
+    private void processSoapResponse(PamResponse soapResponse) throws Exception {
+        instanceStatus = soapResponse.getFlowState();
     }
     
-    private void getProcessDataset(SOAPMessage soapResponse) throws Exception {
-    	String name;
-        String value;      
-        XPathExpression nameExpression=xPath.compile("./@name");
-        XPathExpression valueExpression=xPath.compile("./text()");
-        Object result = xPath.evaluate("//*[local-name()='params']/*[local-name()='param']", soapResponse.getSOAPBody(), XPathConstants.NODESET);
-        NodeList params = (NodeList) result;
-
-        for (int i = 0; i < params.getLength(); i++) {
-            Node n = (Node) params.item(i);
-            if (n != null && n.getNodeType() == Node.ELEMENT_NODE) {
-                Element param = (Element) n;
-                name = nameExpression.evaluate(param);
-                value = valueExpression.evaluate(param);
-                if (processDataset == null)
-                {
-                    processDataset = name + ":" + value;                                          	                
-                } else {
-                    processDataset += "\n" + name + ":" + value;                                          	                
-                }
-            }
-        }    
+    private void getProcessDataset(PamResponse soapResponse) throws Exception {
+        processDataset = soapResponse.getDataset().toText();
+        selectedValues = PamDatasetFilter.select(soapResponse.getDataset(), datasetKeys);
     }
 }
\ No newline at end of file
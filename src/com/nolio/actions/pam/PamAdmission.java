@@ -0,0 +1,267 @@
+package com.nolio.actions.pam;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control in front of the transport of one PAM domain, so that a fan-out of
+ * actions runs the server at its sustainable throughput instead of into overload.
+ * <p>
+ * A call is admitted when fewer calls than the current concurrency limit are in flight
+ * and, if a rate is configured, a token is available; otherwise it queues, and queued
+ * calls are admitted strictly in arrival order. The limit starts at
+ * {@code pam.transport.maxConnections} and, unless {@code pam.admission.adaptive} is
+ * false, follows AIMD: it grows by one per limit's worth of calls that the server answers
+ * and halves, at most once per call latency, when a call fails to connect, times out or
+ * gets HTTP 503 or 429, or when the recent call latency exceeds
+ * {@code pam.admission.latencyTolerance} (default 2.0) times the long-run latency. A SOAP
+ * fault is an answer like any other: a wrong password or an unknown ROID says nothing
+ * about the load of the server. It never drops below
+ * {@code pam.admission.minLimit} (default 1) nor exceeds the configured maximum.
+ * <p>
+ * The token bucket is off by default; {@code pam.admission.ratePerSecond} sets the
+ * sustained rate of calls per domain and {@code pam.admission.burst} (default the rate,
+ * at least 1) the number of calls that may start at once after a quiet period.
+ */
+final class PamAdmission {
+
+    private static final Logger log = Logger.getLogger(PamAdmission.class);
+
+    static final double RATE_PER_SECOND = doubleProperty("pam.admission.ratePerSecond", 0);
+    static final double BURST = doubleProperty("pam.admission.burst", Math.max(1, RATE_PER_SECOND));
+    static final boolean ADAPTIVE = Boolean.parseBoolean(System.getProperty("pam.admission.adaptive", "true"));
+    static final int MIN_LIMIT = Math.max(1, Integer.getInteger("pam.admission.minLimit", 1));
+    static final double LATENCY_TOLERANCE = doubleProperty("pam.admission.latencyTolerance", 2.0);
+
+    private static final ConcurrentMap<String, PamAdmission> REGISTRY = new ConcurrentHashMap<String, PamAdmission>();
+    private static final int WARM_UP_SAMPLES = 20;
+    private static final long MIN_DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String domainUrl;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+    private double limit;
+    private int inFlight;
+    private double tokens = BURST;
+    private long refilledAt = System.nanoTime();
+    private double shortLatencyNanos;
+    private double longLatencyNanos;
+    private long samples;
+    private long decreasedAt;
+
+    /** A queued call, signalled when it is admitted or becomes the head of the queue */
+    private static final class Waiter {
+        final Condition condition;
+        boolean admitted;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    private PamAdmission(String domainUrl, int maxLimit) {
+        this.domainUrl = domainUrl;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = this.maxLimit;
+        this.decreasedAt = System.nanoTime();
+    }
+
+    /** Return the admission controller of a domain, creating it on first use */
+    static PamAdmission forDomain(String domainUrl) {
+        String key = PamTransport.normalize(domainUrl);
+        PamAdmission admission = REGISTRY.get(key);
+        if (admission == null) {
+            PamAdmission created = new PamAdmission(key, PamTransport.MAX_CONNECTIONS);
+            admission = REGISTRY.putIfAbsent(key, created);
+            if (admission == null) {
+                admission = created;
+            }
+        }
+        return admission;
+    }
+
+    /** Wait in line to be admitted; returns false if the timeout expired first */
+    boolean acquire(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            if (queue.isEmpty() && tryAdmit(System.nanoTime())) {
+                return true;
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            queue.addLast(waiter);
+            try {
+                while (!waiter.admitted) {
+                    long now = System.nanoTime();
+                    if (now >= deadline) {
+                        queue.remove(waiter);
+                        dispatch(now);
+                        return false;
+                    }
+                    long sleep = deadline - now;
+                    if (queue.peekFirst() == waiter && inFlight < currentLimit()) {
+                        // head of the line, waiting for a token only
+                        sleep = Math.min(sleep, Math.max(1, nanosToNextToken()));
+                    }
+                    waiter.condition.awaitNanos(sleep);
+                    dispatch(System.nanoTime());
+                }
+                return true;
+            } catch (InterruptedException e) {
+                if (waiter.admitted) {
+                    inFlight--;
+                } else {
+                    queue.remove(waiter);
+                }
+                dispatch(System.nanoTime());
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release an admitted call. overloaded is true if the server could not be reached, timed
+     * out or answered HTTP 503 or 429; latencyNanos is the time the call took once admitted, or a
+     * negative value if it says nothing about the server (e.g. a local error).
+     */
+    void release(long latencyNanos, boolean overloaded) {
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.nanoTime();
+            if (ADAPTIVE) {
+                adapt(now, latencyNanos, overloaded);
+            }
+            dispatch(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Current concurrency limit */
+    int getLimit() {
+        lock.lock();
+        try {
+            return currentLimit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Calls admitted and not yet released */
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Calls waiting to be admitted */
+    int getQueueLength() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(long now, long latencyNanos, boolean overloaded) {
+        boolean slow = false;
+        if (latencyNanos >= 0 && !overloaded) {
+            if (samples++ == 0) {
+                shortLatencyNanos = latencyNanos;
+                longLatencyNanos = latencyNanos;
+            } else {
+                shortLatencyNanos += 0.2 * (latencyNanos - shortLatencyNanos);
+                longLatencyNanos += 0.01 * (latencyNanos - longLatencyNanos);
+            }
+            slow = samples > WARM_UP_SAMPLES && shortLatencyNanos > LATENCY_TOLERANCE * longLatencyNanos;
+        }
+        if (overloaded || slow) {
+            long interval = Math.max(MIN_DECREASE_INTERVAL_NANOS, (long) shortLatencyNanos);
+            if (now - decreasedAt >= interval && limit > MIN_LIMIT) {
+                decreasedAt = now;
+                int previous = currentLimit();
+                limit = Math.max(MIN_LIMIT, limit / 2);
+                if (log.isDebugEnabled()) {
+                    log.debug("Concurrency limit of [" + domainUrl + "] lowered from " + previous + " to " + currentLimit()
+                            + (overloaded ? " after an overloaded call" : " as latency rose to " + (long) (shortLatencyNanos / 1000000) + " ms"));
+                }
+            }
+        } else if (latencyNanos >= 0 && limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /** Admit queued calls in order while the limit and the token bucket allow; called with the lock held */
+    private void dispatch(long now) {
+        Waiter head;
+        while ((head = queue.peekFirst()) != null) {
+            if (!tryAdmit(now)) {
+                // the head times the next token itself
+                head.condition.signal();
+                return;
+            }
+            queue.pollFirst();
+            head.admitted = true;
+            head.condition.signal();
+        }
+    }
+
+    private boolean tryAdmit(long now) {
+        if (inFlight >= currentLimit()) {
+            return false;
+        }
+        if (RATE_PER_SECOND > 0) {
+            refill(now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+        }
+        inFlight++;
+        return true;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(BURST, tokens + (now - refilledAt) * RATE_PER_SECOND / 1e9);
+        refilledAt = now;
+    }
+
+    private long nanosToNextToken() {
+        if (RATE_PER_SECOND <= 0) {
+            return Long.MAX_VALUE;
+        }
+        refill(System.nanoTime());
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * 1e9 / RATE_PER_SECOND);
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value [" + value + "] of " + name);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.nolio.actions.pam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint that a PAM process can notify when it ends, so that waits
+ * complete as soon as it does instead of on their next poll.
+ * <p>
+ * The last step of the process sends a GET, or a form-encoded POST, to
+ * {@code http://<agent>:<pam.callback.port>/pam/callback} with the parameters
+ * {@code roid} (required), {@code state} and {@code domain} (optional, the domain URL to
+ * match when ROIDs may collide across domains), and the shared secret
+ * {@code pam.callback.token} as the {@code token} parameter or the
+ * {@code X-PAM-Callback-Token} header. A notification is not trusted as a result: it makes
+ * the matching waits poll at once, and that poll returns the final status and dataset.
+ * <p>
+ * The listener is started on first use by a wait with Completion Callback on, and only
+ * if {@code pam.callback.port} is set (0 picks a free port) and {@code pam.callback.token}
+ * is not empty, since anyone who can reach it could otherwise make waits poll their PAM
+ * server every half second. It binds to {@code pam.callback.bindAddress}, by default the
+ * loopback interface; set it to the address the PAM server can reach, or to 0.0.0.0 for
+ * all interfaces. Such waits poll every
+ * {@code pam.callback.safetyNetMillis} (default 300000) as a safety net, in case a
+ * notification is lost.
+ */
+final class PamCallbackListener {
+
+    static final int PORT = Integer.getInteger("pam.callback.port", -1);
+    static final String TOKEN = System.getProperty("pam.callback.token", "");
+    static final String BIND_ADDRESS = System.getProperty("pam.callback.bindAddress", "127.0.0.1");
+    static final long SAFETY_NET_MILLIS = Long.getLong("pam.callback.safetyNetMillis", 300000L);
+    static final String PATH = "/pam/callback";
+
+    private static final Logger log = Logger.getLogger(PamCallbackListener.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static PamCallbackListener instance;
+    private static boolean unavailable;
+
+    private final HttpServer server;
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+
+    private PamCallbackListener(HttpServer server) {
+        this.server = server;
+    }
+
+    /** Return the running listener, starting it on first use; null if it is not configured or failed to start */
+    static synchronized PamCallbackListener start() {
+        if (instance != null || unavailable) {
+            return instance;
+        }
+        if (PORT < 0) {
+            unavailable = true;
+            log.warn("Completion callbacks requested but pam.callback.port is not set; waits will poll instead");
+            return null;
+        }
+        if (TOKEN.length() == 0) {
+            unavailable = true;
+            log.warn("Completion callbacks requested but pam.callback.token is not set; the callback listener is not started and waits will poll instead");
+            return null;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(BIND_ADDRESS, PORT), 50);
+            server.setExecutor(Executors.newSingleThreadExecutor(PamWaitScheduler.daemonThreads("PAM-Callback")));
+            final PamCallbackListener listener = new PamCallbackListener(server);
+            server.createContext(PATH, new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        listener.handle(exchange);
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+            server.start();
+            instance = listener;
+            log.info("PAM completion callback listener on " + BIND_ADDRESS + ":" + listener.getPort() + PATH);
+        } catch (IOException e) {
+            unavailable = true;
+            log.warn("Unable to start the PAM completion callback listener on " + BIND_ADDRESS + ":" + PORT + ": " + e + "; waits will poll instead");
+        }
+        return instance;
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    long getNotificationCount() {
+        return notifications.get();
+    }
+
+    /** Notifications that matched no outstanding wait */
+    long getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            parse(read(exchange.getRequestBody()), params);
+        }
+        String token = exchange.getRequestHeaders().getFirst("X-PAM-Callback-Token");
+        if (token == null) {
+            token = params.get("token");
+        }
+        if (token == null || !MessageDigest.isEqual(TOKEN.getBytes(UTF_8), token.getBytes(UTF_8))) {
+            respond(exchange, 403, "Invalid token");
+            return;
+        }
+        String roid = params.get("roid");
+        if (roid == null || roid.trim().length() == 0) {
+            respond(exchange, 400, "Missing roid");
+            return;
+        }
+        notifications.incrementAndGet();
+        int woken = PamWaitScheduler.getInstance().expedite(params.get("domain"), roid.trim());
+        if (woken == 0) {
+            unmatched.incrementAndGet();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Completion callback for Process Instance [" + roid + "] (state " + params.get("state") + ") woke " + woken + " wait(s)");
+        }
+        respond(exchange, 202, "Accepted " + woken);
+    }
+
+    private static void parse(String form, Map<String, String> params) throws IOException {
+        if (form == null || form.length() == 0) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            try {
+                params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (IllegalArgumentException e) {
+                // malformed escape, skip the pair
+            }
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            if (body.size() + count > 65536) {
+                throw new IOException("Callback body too large");
+            }
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
@@ -0,0 +1,266 @@
+package com.nolio.actions.pam;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Thread-safe client for the PAM SOAP operations of one domain, with one set of credentials.
+ * <p>
+ * Every operation returns a {@link CompletableFuture} at once. Calls go through the shared
+ * per-domain {@link PamTransport}, so they share its connection pool, concurrency limit and
+ * circuit breaker with the PAM actions, and status calls go through {@link PamStatusCache}.
+ * The JDK has no non-blocking HTTP client before Java 11, so a call occupies one thread of
+ * a small shared pool of {@code pam.client.threads} (default 32) while it is on the wire;
+ * calls beyond that queue without a thread. Waits for a process to end are driven by the
+ * {@link PamWaitScheduler} and hold no thread at all, so thousands of them can be
+ * outstanding at once.
+ * <p>
+ * The domain URL may list the several orchestrator nodes of a cluster, in which case a
+ * {@link PamRouter} picks the node for each call and keeps the calls for an instance on
+ * the node that started it.
+ * <p>
+ * The PAM actions are adapters on top of this class.
+ */
+public final class PamClient {
+
+    static final int THREADS = Integer.getInteger("pam.client.threads", 32);
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private final PamRouter router;
+    private final String domainUrl;
+    private final String username;
+    private final String password;
+    private final PamMetrics metrics;
+
+    private PamClient(String domainUrl, String username, String password) {
+        this.router = PamRouter.forDomains(domainUrl);
+        this.domainUrl = router.getDomainUrls();
+        this.username = username != null ? username : "";
+        this.password = password != null ? password : "";
+        this.metrics = PamMetrics.forDomain(router.getDomains().get(0));
+        for (String domain : router.getDomains()) {
+            PamServerHealth.forDomain(domain).setProbeCredentials(this.username, this.password);
+        }
+    }
+
+    /**
+     * Client for a domain URL such as http://pamserver:8080/itpam, or for a comma-separated
+     * list of the domain URLs of the nodes of a cluster
+     */
+    public static PamClient create(String domainUrl, String username, String password) {
+        return new PamClient(domainUrl, username, password);
+    }
+
+    /** The domain URL, or the comma-separated domain URLs of a cluster */
+    public String getDomainUrl() {
+        return domainUrl;
+    }
+
+    /** The domain URL of the node that owns a process instance, looking it up on the nodes of a cluster if needed */
+    public String getDomainUrl(String instanceRoid) throws Exception {
+        return router.ownerOf(instanceRoid, getProcessStatusRequest(instanceRoid, null, null));
+    }
+
+    /** Metrics of the domain, or of the first node of a cluster */
+    PamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Status of the PAM server, e.g. Active */
+    public CompletableFuture<String> checkServerStatus() {
+        return async(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return send(checkServerStatusRequest()).getServerStatus();
+            }
+        });
+    }
+
+    /** Start a process with name:value params and return the ROID of the new instance */
+    public CompletableFuture<String> executeProcess(String processPath, String[] params) {
+        return executeProcess(processPath, params, null, null, null, false);
+    }
+
+    /**
+     * Start a process and return the ROID of the new instance. Params may be given as
+     * name:value strings, as parallel name and value arrays, and as name:path file params
+     * whose content is streamed from the file, optionally base64 encoded.
+     */
+    public CompletableFuture<String> executeProcess(final String processPath, final String[] params, final String[] paramNames,
+            final String[] paramValues, final String[] fileParams, final boolean base64Files) {
+        return async(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return send(executeProcessRequest(processPath, params, paramNames, paramValues, fileParams, base64Files))
+                        .getInstanceRoid();
+            }
+        });
+    }
+
+    /** Current status and dataset of a process instance */
+    public CompletableFuture<PamResponse> getProcessStatus(String instanceRoid) {
+        return getProcessStatus(instanceRoid, null, null);
+    }
+
+    /** Current status of a process instance, with only the dataset params named in datasetKeys or matching datasetKeyPattern */
+    public CompletableFuture<PamResponse> getProcessStatus(final String instanceRoid, final String[] datasetKeys,
+            final String datasetKeyPattern) {
+        return async(new Callable<PamResponse>() {
+            @Override
+            public PamResponse call() throws Exception {
+                return getStatus(instanceRoid, getProcessStatusRequest(instanceRoid, datasetKeys, datasetKeyPattern));
+            }
+        });
+    }
+
+    /**
+     * Wait for a process instance to end, polling every pollingMillis, and return its last
+     * status; {@link PamResponse#isEnded()} is false if the timeout expired first.
+     * Cancelling the returned future abandons the wait.
+     */
+    public CompletableFuture<PamResponse> awaitProcessEnd(String instanceRoid, long pollingMillis, long timeoutMillis) {
+        return awaitProcessEnd(instanceRoid, null, pollingMillis, timeoutMillis);
+    }
+
+    /**
+     * Wait for a process instance to end and return its last status. With a processPath,
+     * polling starts sub-second and backs off up to pollingMillis, learning how long
+     * instances of that process typically run; without one it polls every pollingMillis.
+     */
+    public CompletableFuture<PamResponse> awaitProcessEnd(String instanceRoid, String processPath, long pollingMillis,
+            long timeoutMillis) {
+        PamPollingPolicy policy = processPath != null && processPath.length() > 0
+                ? PamPollingPolicy.adaptive(pollingMillis, domainUrl, processPath)
+                : PamPollingPolicy.fixed(pollingMillis);
+        final PamWait wait;
+        try {
+            wait = submitWait(instanceRoid, getProcessStatusRequest(instanceRoid, null, null), policy, timeoutMillis);
+        } catch (Exception e) {
+            CompletableFuture<PamResponse> failed = new CompletableFuture<PamResponse>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        final CompletableFuture<PamResponse> result = wait.whenDone().thenApply(new Function<PamWait, PamResponse>() {
+            @Override
+            public PamResponse apply(PamWait done) {
+                return done.getLastResponse();
+            }
+        });
+        result.whenComplete(new BiConsumer<PamResponse, Throwable>() {
+            @Override
+            public void accept(PamResponse response, Throwable failure) {
+                if (failure instanceof CancellationException) {
+                    wait.cancel();
+                }
+            }
+        });
+        return result;
+    }
+
+    PamRequest checkServerStatusRequest() {
+        long start = System.nanoTime();
+        PamRequest request = PamRequestBuilder.checkServerStatus(username, password);
+        metrics.since(PamMetrics.Phase.BUILD, start);
+        return request;
+    }
+
+    PamRequest executeProcessRequest(String processPath, String[] params, String[] paramNames, String[] paramValues,
+            String[] fileParams, boolean base64Files) {
+        long start = System.nanoTime();
+        PamRequest request = PamRequestBuilder.executeProcess(processPath, username, password, params, paramNames, paramValues,
+                fileParams, base64Files);
+        metrics.since(PamMetrics.Phase.BUILD, start);
+        return request;
+    }
+
+    PamRequest getProcessStatusRequest(String instanceRoid, String[] datasetKeys, String datasetKeyPattern) throws Exception {
+        long start = System.nanoTime();
+        PamRequest request = PamRequestBuilder.getProcessStatus(instanceRoid, username, password)
+                .withDatasetFilter(PamDatasetFilter.of(datasetKeys, datasetKeyPattern));
+        metrics.since(PamMetrics.Phase.BUILD, start);
+        return request;
+    }
+
+    /** Send a request on the calling thread, to the best node of a cluster */
+    PamResponse send(PamRequest request) throws Exception {
+        return router.call(request, PamTransport.READ_TIMEOUT_MILLIS);
+    }
+
+    /** Send a request on the calling thread, giving up if the server does not answer within readTimeoutMillis */
+    PamResponse send(PamRequest request, int readTimeoutMillis) throws Exception {
+        return router.call(request, readTimeoutMillis);
+    }
+
+    /** Send a request on the shared client pool, giving up if the server does not answer within readTimeoutMillis */
+    CompletableFuture<PamResponse> sendAsync(final PamRequest request, final int readTimeoutMillis) {
+        return async(new Callable<PamResponse>() {
+            @Override
+            public PamResponse call() throws Exception {
+                return send(request, readTimeoutMillis);
+            }
+        });
+    }
+
+    /** Send a getProcessStatus request on the calling thread, through the status cache, to the node owning the instance */
+    PamResponse getStatus(String instanceRoid, PamRequest request) throws Exception {
+        return PamStatusCache.getInstance().get(router.ownerOf(instanceRoid, request), request);
+    }
+
+    PamWait submitWait(String instanceRoid, PamRequest request, PamPollingPolicy policy, long timeoutMillis) throws Exception {
+        return PamWaitScheduler.getInstance().submit(router.ownerOf(instanceRoid, request), instanceRoid, request, policy, timeoutMillis);
+    }
+
+    /** Block for a future of this client, rethrowing the exception it failed with */
+    static <T> T join(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static <T> CompletableFuture<T> async(final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        int threads = Math.max(1, THREADS);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), PamWaitScheduler.daemonThreads("PAM-Client"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,11 @@
+package com.nolio.actions.pam;
+
+/** Thrown when a PAM domain cannot be reached at all, as opposed to a call that reached the server and failed */
+class PamConnectException extends Exception {
+
+    private static final long serialVersionUID = 2000L;
+
+    PamConnectException(String message) {
+        super(message);
+    }
+}
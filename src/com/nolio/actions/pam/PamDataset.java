@@ -0,0 +1,327 @@
+package com.nolio.actions.pam;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact, read-only dataset of a PAM process instance.
+ * <p>
+ * Parameter names are interned in an agent-wide pool, since the same few names recur
+ * across every instance of a process. All values share one backing char buffer and are
+ * addressed by offset, so a dataset costs a handful of objects however many params it has.
+ * A dataset is assembled straight from the response stream by {@link Builder}. Values
+ * beyond {@code pam.dataset.spillThresholdChars} (default 1048576) are streamed to a
+ * temporary spill file instead of the heap, so that a large dataset is not held twice
+ * while the response is parsed and does not stay on the heap while it is cached or
+ * filtered. The action outputs are strings, though: {@link #toText()} and
+ * {@link #toArray()} read a spilled dataset back in full, so the heap a dataset takes at
+ * its peak is bounded only by {@code pam.dataset.maxChars} (default 16777216), beyond
+ * which a dataset is rejected; 0 removes the limit. Dataset Keys keep only the params
+ * needed, before anything is buffered or spilled. The spill file of a
+ * dataset is deleted once the dataset is no longer referenced, by a sweep that the
+ * {@link PamWaitScheduler} timer runs every {@code pam.dataset.reclaimMillis} (default
+ * 10000) and that also runs before each new spill.
+ */
+final class PamDataset {
+
+    static final int SPILL_THRESHOLD_CHARS = Integer.getInteger("pam.dataset.spillThresholdChars", 1048576);
+    static final long MAX_CHARS = Long.getLong("pam.dataset.maxChars", 16777216L);
+    static final long RECLAIM_MILLIS = Long.getLong("pam.dataset.reclaimMillis", 10000L);
+
+    static final PamDataset EMPTY = new PamDataset(new String[0], new long[1], new char[0], null);
+
+    private static final int MAX_POOLED_NAMES = 10000;
+    private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+    private static final ReferenceQueue<PamDataset> RECLAIMED = new ReferenceQueue<PamDataset>();
+    private static final Set<SpillFile> SPILL_FILES = Collections.newSetFromMap(new ConcurrentHashMap<SpillFile, Boolean>());
+    private static final Set<File> UNDELETED = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final String[] names;
+    private final long[] offsets;
+    private final char[] values;
+    private final File spill;
+
+    private PamDataset(String[] names, long[] offsets, char[] values, File spill) {
+        this.names = names;
+        this.offsets = offsets;
+        this.values = values;
+        this.spill = spill;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    String getValue(int index) {
+        long start = offsets[index];
+        int length = (int) (offsets[index + 1] - start);
+        if (spill == null) {
+            return new String(values, (int) start, length);
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(spill, "r");
+            try {
+                return readSpill(file, start, length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw spillFailure(e);
+        }
+    }
+
+    /** Index of the first param with the given name, or -1 */
+    int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Total number of value characters */
+    long getValueLength() {
+        return offsets[names.length];
+    }
+
+    boolean isSpilled() {
+        return spill != null;
+    }
+
+    /** Params as name:value lines, the format of the Process Instance Dataset outputs; reads a spilled dataset back onto the heap */
+    String toText() {
+        long length = getValueLength() + Math.max(0, names.length - 1);
+        for (int i = 0; i < names.length; i++) {
+            length += names[i].length() + 1;
+        }
+        StringBuilder text = new StringBuilder((int) Math.min(length, Integer.MAX_VALUE - 8));
+        RandomAccessFile file = openSpill();
+        try {
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    text.append('\n');
+                }
+                text.append(names[i]).append(':');
+                appendValue(text, i, file);
+            }
+        } finally {
+            closeSpill(file);
+        }
+        return text.toString();
+    }
+
+    /** Params as name:value entries; reads a spilled dataset back onto the heap */
+    String[] toArray() {
+        String[] entries = new String[names.length];
+        StringBuilder entry = new StringBuilder();
+        RandomAccessFile file = openSpill();
+        try {
+            for (int i = 0; i < names.length; i++) {
+                entry.setLength(0);
+                entry.append(names[i]).append(':');
+                appendValue(entry, i, file);
+                entries[i] = entry.toString();
+            }
+        } finally {
+            closeSpill(file);
+        }
+        return entries;
+    }
+
+    private void appendValue(StringBuilder text, int index, RandomAccessFile file) {
+        int start = (int) offsets[index];
+        int length = (int) (offsets[index + 1] - offsets[index]);
+        if (file == null) {
+            text.append(values, start, length);
+            return;
+        }
+        try {
+            text.append(readSpill(file, offsets[index], length));
+        } catch (IOException e) {
+            throw spillFailure(e);
+        }
+    }
+
+    private RandomAccessFile openSpill() {
+        if (spill == null) {
+            return null;
+        }
+        try {
+            return new RandomAccessFile(spill, "r");
+        } catch (IOException e) {
+            throw spillFailure(e);
+        }
+    }
+
+    private static void closeSpill(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String readSpill(RandomAccessFile file, long start, int length) throws IOException {
+        byte[] bytes = new byte[length * 2];
+        file.seek(start * 2);
+        file.readFully(bytes);
+        return new String(bytes, "UTF-16BE");
+    }
+
+    private IllegalStateException spillFailure(IOException e) {
+        return new IllegalStateException("Unable to read spilled dataset [" + spill + "]: " + e.getMessage());
+    }
+
+    static String internName(String name) {
+        String pooled = NAMES.get(name);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (NAMES.size() >= MAX_POOLED_NAMES) {
+            return name;
+        }
+        pooled = NAMES.putIfAbsent(name, name);
+        return pooled != null ? pooled : name;
+    }
+
+    /** Delete the spill files of datasets that are no longer referenced, retrying those that could not be deleted before */
+    static void reclaimSpillFiles() {
+        Reference<? extends PamDataset> reference;
+        while ((reference = RECLAIMED.poll()) != null) {
+            SpillFile spillFile = (SpillFile) reference;
+            SPILL_FILES.remove(spillFile);
+            delete(spillFile.file);
+        }
+        for (File file : UNDELETED) {
+            if (file.delete() || !file.exists()) {
+                UNDELETED.remove(file);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            UNDELETED.add(file);
+        }
+    }
+
+    private static final class SpillFile extends PhantomReference<PamDataset> {
+        private final File file;
+
+        SpillFile(PamDataset dataset, File file) {
+            super(dataset, RECLAIMED);
+            this.file = file;
+        }
+    }
+
+    /** Accumulates a dataset one param at a time, as the response is being read */
+    static final class Builder {
+
+        private String[] names = new String[16];
+        private long[] offsets = new long[17];
+        private char[] values = new char[256];
+        private int count;
+        private int buffered;
+        private long length;
+        private File spill;
+        private Writer spillWriter;
+
+        /** Start a new param; its value is given by the appendValue calls that follow */
+        void startParam(String name) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count << 1);
+                offsets = Arrays.copyOf(offsets, (count << 1) + 1);
+            }
+            names[count] = internName(name != null ? name : "");
+            offsets[count] = length;
+        }
+
+        void appendValue(char[] chars, int start, int charCount) throws IOException {
+            if (MAX_CHARS > 0 && length + charCount > MAX_CHARS) {
+                throw new IOException("Process dataset exceeds the limit of " + MAX_CHARS + " characters (pam.dataset.maxChars)."
+                        + " Use Dataset Keys to retrieve only the params needed");
+            }
+            if (spillWriter == null && buffered + charCount > SPILL_THRESHOLD_CHARS) {
+                startSpill();
+            }
+            if (spillWriter != null) {
+                spillWriter.write(chars, start, charCount);
+            } else {
+                if (buffered + charCount > values.length) {
+                    values = Arrays.copyOf(values, Math.max(values.length << 1, buffered + charCount));
+                }
+                System.arraycopy(chars, start, values, buffered, charCount);
+                buffered += charCount;
+            }
+            length += charCount;
+        }
+
+        void endParam() {
+            count++;
+            offsets[count] = length;
+        }
+
+        PamDataset build() throws IOException {
+            if (count == 0 && spill == null) {
+                return EMPTY;
+            }
+            String[] finalNames = Arrays.copyOf(names, count);
+            long[] finalOffsets = Arrays.copyOf(offsets, count + 1);
+            if (spillWriter == null) {
+                return new PamDataset(finalNames, finalOffsets, Arrays.copyOf(values, buffered), null);
+            }
+            spillWriter.close();
+            spillWriter = null;
+            PamDataset dataset = new PamDataset(finalNames, finalOffsets, null, spill);
+            SPILL_FILES.add(new SpillFile(dataset, spill));
+            spill = null;
+            return dataset;
+        }
+
+        /** Release the spill file of a dataset that will not be built */
+        void discard() {
+            if (spill != null) {
+                try {
+                    if (spillWriter != null) {
+                        spillWriter.close();
+                    }
+                } catch (IOException e) {
+                    // ignore
+                }
+                delete(spill);
+                spill = null;
+                spillWriter = null;
+            }
+        }
+
+        private void startSpill() throws IOException {
+            reclaimSpillFiles();
+            // starts the timer that reclaims spill files while no dataset is being built
+            PamWaitScheduler.getInstance();
+            spill = File.createTempFile("pam-dataset-", ".spill");
+            spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spill), "UTF-16BE"));
+            spillWriter.write(values, 0, buffered);
+            values = null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.nolio.actions.pam;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/** Selects the dataset params worth decoding, by exact name and/or by a regular expression on the name */
+final class PamDatasetFilter {
+
+    private final Set<String> keys;
+    private final Pattern pattern;
+
+    private PamDatasetFilter(Set<String> keys, Pattern pattern) {
+        this.keys = keys;
+        this.pattern = pattern;
+    }
+
+    /** Return a filter for the given keys and pattern, or null when neither is given and every param is wanted */
+    static PamDatasetFilter of(String[] keys, String pattern) throws Exception {
+        Set<String> keySet = new HashSet<String>();
+        if (keys != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && keys[i].trim().length() > 0) {
+                    keySet.add(keys[i].trim());
+                }
+            }
+        }
+        Pattern compiled = null;
+        if (pattern != null && pattern.length() > 0) {
+            try {
+                compiled = Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                throw new Exception("Invalid Dataset Key Pattern [" + pattern + "]: " + e.getDescription());
+            }
+        }
+        if (keySet.isEmpty() && compiled == null) {
+            return null;
+        }
+        return new PamDatasetFilter(keySet, compiled);
+    }
+
+    boolean accepts(String name) {
+        return keys.contains(name) || (pattern != null && pattern.matcher(name).matches());
+    }
+
+    /** Values of the given keys in the given order, empty where the dataset has no such param */
+    static String[] select(PamDataset dataset, String[] keys) {
+        if (keys == null) {
+            return new String[0];
+        }
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i] != null ? keys[i].trim() : "";
+            int index = dataset.indexOf(key);
+            values[i] = index >= 0 ? dataset.getValue(index) : "";
+        }
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PamDatasetFilter)) {
+            return false;
+        }
+        PamDatasetFilter other = (PamDatasetFilter) obj;
+        return keys.equals(other.keys)
+                && (pattern == null ? other.pattern == null : other.pattern != null && pattern.pattern().equals(other.pattern.pattern()));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] { keys, pattern != null ? pattern.pattern() : null });
+    }
+}
@@ -0,0 +1,599 @@
+package com.nolio.actions.pam;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Call metrics of one PAM domain: a latency histogram per {@link Phase}, counters for
+ * calls, SOAP faults, connect failures, other errors, calls rejected by the circuit
+ * breaker and status responses left undecoded because they were unchanged, counters for
+ * the waits that saw their process end or timed out and the status polls the ended ones
+ * took, gauges for the calls in flight and queued for admission, the concurrency limit
+ * and the waits in flight, and the circuit breaker state, last reported server status and
+ * time of the last answer or connect failure kept by {@link PamServerHealth}.
+ * <p>
+ * Recording costs a few uncontended {@link LongAdder} increments, so it is always on.
+ * Each domain is registered with the platform MBean server as
+ * {@code com.nolio.actions.pam:type=PamMetrics,domain="<domain URL>"}, with attributes
+ * such as {@code CallCount}, {@code FaultCount}, {@code QueuedCalls},
+ * {@code ConcurrencyLimit}, {@code InFlightWaits}, {@code PollsPerEndedWait},
+ * {@code ServerState}, {@code LastServerStatus} and, per phase, {@code <Phase>Count},
+ * {@code <Phase>MeanMillis}, {@code <Phase>P50Millis}, {@code <Phase>P99Millis} and
+ * {@code <Phase>MaxMillis}, and, per SOAP operation, the request and response body sizes
+ * uncompressed and on the wire, e.g. {@code GetFlowStateResponseWireBytes}.
+ */
+final class PamMetrics {
+
+    /** Where the time of a PAM call goes */
+    enum Phase {
+        /** createSoapRequest() in the action */
+        BUILD("Build"),
+        /** waiting in line for admission by {@link PamAdmission} */
+        QUEUE("Queue"),
+        /** opening the connection, or taking one from the keep-alive cache */
+        CONNECT("Connect"),
+        /** writing the request body */
+        SEND("Send"),
+        /** from the request being sent to the response status line, i.e. PAM server time */
+        SERVER("Server"),
+        /** decoding the response */
+        PARSE("Parse"),
+        /** processSoapResponse() in the action */
+        PROCESS("Process"),
+        /** a whole transport call, queueing included */
+        CALL("Call"),
+        /** time a wait spent sleeping before each status poll */
+        POLL_SLEEP("PollSleep"),
+        /** a whole wait, from submission until the instance ended, timed out or failed */
+        WAIT("Wait");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /** SOAP operations whose payload sizes are exposed through JMX */
+    static final String[] OPERATIONS = { "checkServerStatus", "ExecuteC2OFlow", "GetFlowState" };
+
+    private static final Logger log = Logger.getLogger(PamMetrics.class);
+    private static final ConcurrentMap<String, PamMetrics> REGISTRY = new ConcurrentHashMap<String, PamMetrics>();
+
+    private final String domainUrl;
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder faults = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder endedWaits = new LongAdder();
+    private final LongAdder endedWaitPolls = new LongAdder();
+    private final LongAdder timedOutWaits = new LongAdder();
+    private final AtomicInteger inFlightCalls = new AtomicInteger();
+    private final ConcurrentMap<String, Payloads> payloads = new ConcurrentHashMap<String, Payloads>();
+
+    private PamMetrics(String domainUrl) {
+        this.domainUrl = domainUrl;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /** Return the metrics of a domain, creating and registering them on first use */
+    static PamMetrics forDomain(String domainUrl) {
+        String key = PamTransport.normalize(domainUrl);
+        PamMetrics metrics = REGISTRY.get(key);
+        if (metrics == null) {
+            PamMetrics created = new PamMetrics(key);
+            metrics = REGISTRY.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                created.register();
+            }
+        }
+        return metrics;
+    }
+
+    /** Metrics of every domain used so far */
+    static Collection<PamMetrics> all() {
+        return Collections.unmodifiableCollection(REGISTRY.values());
+    }
+
+    String getDomainUrl() {
+        return domainUrl;
+    }
+
+    Histogram get(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /** Record the time elapsed since startNanos and return the current System.nanoTime() */
+    long since(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        histograms[phase.ordinal()].record(now - startNanos);
+        return now;
+    }
+
+    void onCallStarted() {
+        calls.increment();
+        inFlightCalls.incrementAndGet();
+    }
+
+    void onCallEnded() {
+        inFlightCalls.decrementAndGet();
+    }
+
+    void onFault() {
+        faults.increment();
+    }
+
+    void onConnectFailure() {
+        connectFailures.increment();
+    }
+
+    void onError() {
+        errors.increment();
+    }
+
+    void onRejected() {
+        rejected.increment();
+    }
+
+    /** Record the request and response body sizes of a call, uncompressed and on the wire */
+    void recordPayload(String operation, long requestBytes, long requestWireBytes, long responseBytes, long responseWireBytes) {
+        getPayloads(operation).record(requestBytes, requestWireBytes, responseBytes, responseWireBytes);
+    }
+
+    Payloads getPayloads(String operation) {
+        Payloads sizes = payloads.get(operation);
+        if (sizes == null) {
+            Payloads created = new Payloads();
+            sizes = payloads.putIfAbsent(operation, created);
+            if (sizes == null) {
+                sizes = created;
+            }
+        }
+        return sizes;
+    }
+
+    /** A status response was identical to the previous one and was not decoded again */
+    void onUnchanged() {
+        unchanged.increment();
+    }
+
+    /** A wait saw its process end after the given number of status polls */
+    void onWaitEnded(int polls) {
+        endedWaits.increment();
+        endedWaitPolls.add(polls);
+    }
+
+    void onWaitTimedOut() {
+        timedOutWaits.increment();
+    }
+
+    long getCallCount() {
+        return calls.sum();
+    }
+
+    long getFaultCount() {
+        return faults.sum();
+    }
+
+    long getConnectFailureCount() {
+        return connectFailures.sum();
+    }
+
+    long getErrorCount() {
+        return errors.sum();
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    long getUnchangedCount() {
+        return unchanged.sum();
+    }
+
+    long getEndedWaitCount() {
+        return endedWaits.sum();
+    }
+
+    long getTimedOutWaitCount() {
+        return timedOutWaits.sum();
+    }
+
+    /** Average number of status polls it took for a wait to see its process end */
+    double getPollsPerEndedWait() {
+        long ended = endedWaits.sum();
+        return ended == 0 ? 0 : (double) endedWaitPolls.sum() / ended;
+    }
+
+    int getInFlightCalls() {
+        return inFlightCalls.get();
+    }
+
+    /** Calls waiting for admission */
+    int getQueuedCalls() {
+        return PamAdmission.forDomain(domainUrl).getQueueLength();
+    }
+
+    /** Current concurrency limit of the admission controller */
+    int getConcurrencyLimit() {
+        return PamAdmission.forDomain(domainUrl).getLimit();
+    }
+
+    int getInFlightWaits() {
+        PamWaitScheduler scheduler = PamWaitScheduler.getIfStarted();
+        return scheduler != null ? scheduler.getWaitCount(domainUrl) : 0;
+    }
+
+    /** State of the circuit breaker of the domain */
+    String getServerState() {
+        return PamServerHealth.forDomain(domainUrl).getState().name();
+    }
+
+    /** Last server status reported by a checkServerStatus call or probe */
+    String getLastServerStatus() {
+        return PamServerHealth.forDomain(domainUrl).getLastServerStatus();
+    }
+
+    /** When the server last answered or failed to connect, in epoch milliseconds; 0 if never */
+    long getLastCheckedAt() {
+        return PamServerHealth.forDomain(domainUrl).getLastCheckedAt();
+    }
+
+    private void register() {
+        try {
+            ObjectName name = new ObjectName("com.nolio.actions.pam:type=PamMetrics,domain=" + ObjectName.quote(domainUrl));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to register PAM metrics of [" + domainUrl + "] with JMX: " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(256);
+        text.append(domainUrl).append(": calls=").append(getCallCount())
+                .append(" faults=").append(getFaultCount())
+                .append(" connectFailures=").append(getConnectFailureCount())
+                .append(" errors=").append(getErrorCount())
+                .append(" rejected=").append(getRejectedCount())
+                .append(" unchanged=").append(getUnchangedCount())
+                .append(" endedWaits=").append(getEndedWaitCount())
+                .append(" timedOutWaits=").append(getTimedOutWaitCount())
+                .append(String.format(Locale.ROOT, " pollsPerEndedWait=%.2f", getPollsPerEndedWait()))
+                .append(" limit=").append(getConcurrencyLimit())
+                .append(" state=").append(getServerState());
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = get(phase);
+            if (histogram.getCount() > 0) {
+                text.append(' ').append(phase.label).append("=").append(histogram);
+            }
+        }
+        for (Map.Entry<String, Payloads> operation : payloads.entrySet()) {
+            text.append(' ').append(operation.getKey()).append("=").append(operation.getValue());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Lock-free latency histogram with power-of-two microsecond buckets; percentiles are
+     * reported as the upper bound of their bucket, so they are accurate to a factor of two.
+     */
+    static final class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getMeanMillis() {
+            long samples = count.sum();
+            return samples == 0 ? 0 : totalNanos.sum() / 1e6 / samples;
+        }
+
+        double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        /** Upper bound of the bucket holding the given quantile (0 to 1), capped at the maximum */
+        double getPercentileMillis(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long samples = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                samples += counts[i];
+            }
+            if (samples == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * samples);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(TimeUnit.MICROSECONDS.toNanos(1L << i) / 1e6, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "[n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms]", getCount(), getMeanMillis(),
+                    getPercentileMillis(0.50), getPercentileMillis(0.99), getMaxMillis());
+        }
+    }
+
+    /** Body sizes of the calls of one SOAP operation, uncompressed and on the wire */
+    static final class Payloads {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder requestWireBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder responseWireBytes = new LongAdder();
+        private final AtomicLong maxResponseBytes = new AtomicLong();
+
+        void record(long request, long requestWire, long response, long responseWire) {
+            count.increment();
+            requestBytes.add(request);
+            requestWireBytes.add(requestWire);
+            responseBytes.add(response);
+            responseWireBytes.add(responseWire);
+            long max = maxResponseBytes.get();
+            while (response > max && !maxResponseBytes.compareAndSet(max, response)) {
+                max = maxResponseBytes.get();
+            }
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getRequestBytes() {
+            return requestBytes.sum();
+        }
+
+        long getRequestWireBytes() {
+            return requestWireBytes.sum();
+        }
+
+        long getResponseBytes() {
+            return responseBytes.sum();
+        }
+
+        long getResponseWireBytes() {
+            return responseWireBytes.sum();
+        }
+
+        long getMaxResponseBytes() {
+            return maxResponseBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            long n = Math.max(1, getCount());
+            return String.format(Locale.ROOT, "[n=%d request=%dB/%dB response=%dB/%dB max=%dB]", getCount(),
+                    getRequestBytes() / n, getRequestWireBytes() / n, getResponseBytes() / n, getResponseWireBytes() / n,
+                    getMaxResponseBytes());
+        }
+    }
+
+    /** Read-only JMX view; attributes are computed when read */
+    private final class MBean implements DynamicMBean {
+
+        private final MBeanInfo info;
+
+        MBean() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            attributes.add(attribute("DomainUrl", String.class, "PAM domain URL"));
+            attributes.add(attribute("CallCount", Long.class, "SOAP calls sent"));
+            attributes.add(attribute("FaultCount", Long.class, "SOAP faults received"));
+            attributes.add(attribute("ConnectFailureCount", Long.class, "Calls that could not connect"));
+            attributes.add(attribute("ErrorCount", Long.class, "Calls that failed otherwise"));
+            attributes.add(attribute("RejectedCount", Long.class, "Calls rejected by the open circuit breaker"));
+            attributes.add(attribute("UnchangedCount", Long.class, "Status responses identical to the previous one, not decoded again"));
+            attributes.add(attribute("EndedWaitCount", Long.class, "Waits that saw their process end"));
+            attributes.add(attribute("TimedOutWaitCount", Long.class, "Waits that timed out"));
+            attributes.add(attribute("PollsPerEndedWait", Double.class, "Average status polls of a wait that saw its process end"));
+            attributes.add(attribute("InFlightCalls", Integer.class, "SOAP calls in flight"));
+            attributes.add(attribute("QueuedCalls", Integer.class, "SOAP calls waiting for admission"));
+            attributes.add(attribute("ConcurrencyLimit", Integer.class, "Current limit of SOAP calls in flight"));
+            attributes.add(attribute("InFlightWaits", Integer.class, "Waits for process end outstanding"));
+            attributes.add(attribute("ServerState", String.class, "Circuit breaker state: CLOSED, OPEN or HALF_OPEN"));
+            attributes.add(attribute("LastServerStatus", String.class, "Last status reported by checkServerStatus"));
+            attributes.add(attribute("LastCheckedAt", Long.class, "When the server last answered or failed to connect, in epoch milliseconds"));
+            for (String operation : OPERATIONS) {
+                attributes.add(attribute(operation + "Payloads", Long.class, "Calls of " + operation + " with a decoded response"));
+                attributes.add(attribute(operation + "RequestBytes", Long.class, "Total uncompressed request bytes of " + operation));
+                attributes.add(attribute(operation + "RequestWireBytes", Long.class, "Total request bytes of " + operation + " on the wire"));
+                attributes.add(attribute(operation + "ResponseBytes", Long.class, "Total uncompressed response bytes of " + operation));
+                attributes.add(attribute(operation + "ResponseWireBytes", Long.class, "Total response bytes of " + operation + " on the wire"));
+                attributes.add(attribute(operation + "MaxResponseBytes", Long.class, "Largest uncompressed response of " + operation));
+            }
+            for (Phase phase : Phase.values()) {
+                attributes.add(attribute(phase.label + "Count", Long.class, "Samples of " + phase.label));
+                attributes.add(attribute(phase.label + "MeanMillis", Double.class, "Mean " + phase.label + " time"));
+                attributes.add(attribute(phase.label + "P50Millis", Double.class, "Median " + phase.label + " time"));
+                attributes.add(attribute(phase.label + "P99Millis", Double.class, "99th percentile " + phase.label + " time"));
+                attributes.add(attribute(phase.label + "MaxMillis", Double.class, "Maximum " + phase.label + " time"));
+            }
+            info = new MBeanInfo(PamMetrics.class.getName(), "PAM call metrics of " + domainUrl,
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            if ("DomainUrl".equals(name)) {
+                return domainUrl;
+            } else if ("CallCount".equals(name)) {
+                return getCallCount();
+            } else if ("FaultCount".equals(name)) {
+                return getFaultCount();
+            } else if ("ConnectFailureCount".equals(name)) {
+                return getConnectFailureCount();
+            } else if ("ErrorCount".equals(name)) {
+                return getErrorCount();
+            } else if ("RejectedCount".equals(name)) {
+                return getRejectedCount();
+            } else if ("UnchangedCount".equals(name)) {
+                return getUnchangedCount();
+            } else if ("EndedWaitCount".equals(name)) {
+                return getEndedWaitCount();
+            } else if ("TimedOutWaitCount".equals(name)) {
+                return getTimedOutWaitCount();
+            } else if ("PollsPerEndedWait".equals(name)) {
+                return getPollsPerEndedWait();
+            } else if ("InFlightCalls".equals(name)) {
+                return getInFlightCalls();
+            } else if ("QueuedCalls".equals(name)) {
+                return getQueuedCalls();
+            } else if ("ConcurrencyLimit".equals(name)) {
+                return getConcurrencyLimit();
+            } else if ("InFlightWaits".equals(name)) {
+                return getInFlightWaits();
+            } else if ("ServerState".equals(name)) {
+                return getServerState();
+            } else if ("LastServerStatus".equals(name)) {
+                return getLastServerStatus();
+            } else if ("LastCheckedAt".equals(name)) {
+                return getLastCheckedAt();
+            }
+            for (String operation : OPERATIONS) {
+                if (name.startsWith(operation)) {
+                    Payloads sizes = getPayloads(operation);
+                    String statistic = name.substring(operation.length());
+                    if ("Payloads".equals(statistic)) {
+                        return sizes.getCount();
+                    } else if ("RequestBytes".equals(statistic)) {
+                        return sizes.getRequestBytes();
+                    } else if ("RequestWireBytes".equals(statistic)) {
+                        return sizes.getRequestWireBytes();
+                    } else if ("ResponseBytes".equals(statistic)) {
+                        return sizes.getResponseBytes();
+                    } else if ("ResponseWireBytes".equals(statistic)) {
+                        return sizes.getResponseWireBytes();
+                    } else if ("MaxResponseBytes".equals(statistic)) {
+                        return sizes.getMaxResponseBytes();
+                    }
+                }
+            }
+            for (Phase phase : Phase.values()) {
+                if (name.startsWith(phase.label)) {
+                    Histogram histogram = get(phase);
+                    String statistic = name.substring(phase.label.length());
+                    if ("Count".equals(statistic)) {
+                        return histogram.getCount();
+                    } else if ("MeanMillis".equals(statistic)) {
+                        return histogram.getMeanMillis();
+                    } else if ("P50Millis".equals(statistic)) {
+                        return histogram.getPercentileMillis(0.50);
+                    } else if ("P99Millis".equals(statistic)) {
+                        return histogram.getPercentileMillis(0.99);
+                    } else if ("MaxMillis".equals(statistic)) {
+                        return histogram.getMaxMillis();
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(name);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                try {
+                    list.add(new Attribute(name, getAttribute(name)));
+                } catch (AttributeNotFoundException e) {
+                    // skipped, as the MBean server expects
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action), "No operation " + action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+
+        private MBeanAttributeInfo attribute(String name, Class<?> type, String description) {
+            return new MBeanAttributeInfo(name, type.getName(), description, true, false, false);
+        }
+    }
+}
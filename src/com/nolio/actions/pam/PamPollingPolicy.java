@@ -0,0 +1,95 @@
+package com.nolio.actions.pam;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when a {@link PamWait} polls next.
+ * <p>
+ * The fixed policy polls every polling period, as PAMWaitForProcessEnd always has.
+ * The adaptive policy starts at {@code pam.wait.adaptive.initialMillis} (default 500),
+ * doubles the delay after every poll up to the polling period, and spreads each delay by
+ * {@code pam.wait.adaptive.jitterPercent} (default 20) percent so that waits started
+ * together do not keep polling together. When a process path is known, the typical
+ * duration of earlier instances of that process on the same domain (an exponentially
+ * weighted average) is used to hold back the first poll.
+ */
+final class PamPollingPolicy {
+
+    static final long ADAPTIVE_INITIAL_MILLIS = Long.getLong("pam.wait.adaptive.initialMillis", 500L);
+    static final int ADAPTIVE_JITTER_PERCENT = Integer.getInteger("pam.wait.adaptive.jitterPercent", 20);
+
+    private static final double FIRST_POLL_FRACTION = 0.8;
+    private static final double DURATION_WEIGHT = 0.3;
+    private static final int MAX_LEARNED_PROCESSES = 1000;
+    private static final ConcurrentMap<String, Long> TYPICAL_DURATIONS = new ConcurrentHashMap<String, Long>();
+
+    private final boolean adaptive;
+    private final long pollingMillis;
+    private final String durationKey;
+
+    private PamPollingPolicy(boolean adaptive, long pollingMillis, String durationKey) {
+        this.adaptive = adaptive;
+        this.pollingMillis = pollingMillis;
+        this.durationKey = durationKey;
+    }
+
+    static PamPollingPolicy fixed(long pollingMillis) {
+        return new PamPollingPolicy(false, pollingMillis, null);
+    }
+
+    /** Adaptive policy capped at pollingMillis; processPath may be empty when unknown */
+    static PamPollingPolicy adaptive(long pollingMillis, String domainUrl, String processPath) {
+        String key = processPath == null || processPath.length() == 0 ? null : PamTransport.normalize(domainUrl) + "|" + processPath;
+        return new PamPollingPolicy(true, pollingMillis, key);
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /** Delay before the first poll */
+    long firstDelay() {
+        if (!adaptive || durationKey == null) {
+            return 0;
+        }
+        Long typical = TYPICAL_DURATIONS.get(durationKey);
+        return typical != null ? jitter((long) (typical * FIRST_POLL_FRACTION)) : 0;
+    }
+
+    /** Delay before the next poll, given the number of polls done so far */
+    long nextDelay(int pollCount) {
+        if (!adaptive) {
+            return pollingMillis;
+        }
+        long delay = ADAPTIVE_INITIAL_MILLIS;
+        for (int i = 1; i < pollCount && delay < pollingMillis; i++) {
+            delay <<= 1;
+        }
+        return jitter(Math.min(delay, pollingMillis));
+    }
+
+    /** Learn how long an instance of this process took to end, as observed by a wait */
+    void recordDuration(long millis) {
+        if (durationKey == null || millis <= 0) {
+            return;
+        }
+        Long previous = TYPICAL_DURATIONS.get(durationKey);
+        if (previous == null) {
+            if (TYPICAL_DURATIONS.size() < MAX_LEARNED_PROCESSES) {
+                TYPICAL_DURATIONS.putIfAbsent(durationKey, millis);
+            }
+        } else {
+            TYPICAL_DURATIONS.replace(durationKey, previous, (long) (previous + DURATION_WEIGHT * (millis - previous)));
+        }
+    }
+
+    private static long jitter(long delay) {
+        long spread = delay * ADAPTIVE_JITTER_PERCENT / 100;
+        if (spread <= 0) {
+            return delay;
+        }
+        return delay - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+    }
+}
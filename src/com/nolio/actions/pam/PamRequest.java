@@ -0,0 +1,133 @@
+package com.nolio.actions.pam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A serialized SOAP request body ready to be posted to a PAM domain, optionally with the
+ * filter to apply to the dataset of its response.
+ * <p>
+ * Param values read from files are not held in the body; they are streamed from the file
+ * into the connection at their offset in the body when the request is written, in which
+ * case the length of the request is not known up front.
+ */
+final class PamRequest {
+
+    private final String soapAction;
+    private final byte[] body;
+    private final int length;
+    private final StreamedValue[] streamedValues;
+    private final PamDatasetFilter datasetFilter;
+    private int hash;
+
+    PamRequest(String soapAction, byte[] body, int length) {
+        this(soapAction, body, length, null, null);
+    }
+
+    PamRequest(String soapAction, byte[] body, int length, StreamedValue[] streamedValues) {
+        this(soapAction, body, length, streamedValues, null);
+    }
+
+    private PamRequest(String soapAction, byte[] body, int length, StreamedValue[] streamedValues, PamDatasetFilter datasetFilter) {
+        this.soapAction = soapAction;
+        this.body = body;
+        this.length = length;
+        this.streamedValues = streamedValues != null && streamedValues.length > 0 ? streamedValues : null;
+        this.datasetFilter = datasetFilter;
+    }
+
+    /** The same request, decoding only the dataset params accepted by the filter (all of them if null) */
+    PamRequest withDatasetFilter(PamDatasetFilter filter) {
+        return new PamRequest(soapAction, body, length, streamedValues, filter);
+    }
+
+    PamDatasetFilter getDatasetFilter() {
+        return datasetFilter;
+    }
+
+    String getSoapAction() {
+        return soapAction;
+    }
+
+    /** Length of the body in bytes, or -1 when values are streamed from files */
+    int getLength() {
+        return streamedValues == null ? length : -1;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        if (streamedValues == null) {
+            out.write(body, 0, length);
+            return;
+        }
+        int position = 0;
+        for (int i = 0; i < streamedValues.length; i++) {
+            StreamedValue value = streamedValues[i];
+            out.write(body, position, value.offset - position);
+            PamRequestBuilder.streamFile(value.file, value.base64, out);
+            position = value.offset;
+        }
+        out.write(body, position, length - position);
+    }
+
+    /** Requests are equal when they would put the same bytes on the wire and decode the same dataset params */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PamRequest) || streamedValues != null) {
+            return false;
+        }
+        PamRequest other = (PamRequest) obj;
+        if (other.streamedValues != null) {
+            return false;
+        }
+        if (length != other.length || hashCode() != other.hashCode() || !soapAction.equals(other.soapAction)) {
+            return false;
+        }
+        if (datasetFilter == null ? other.datasetFilter != null : !datasetFilter.equals(other.datasetFilter)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (body[i] != other.body[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + body[i];
+            }
+            if (datasetFilter != null) {
+                h = 31 * h + datasetFilter.hashCode();
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return soapAction + " (" + length + " bytes" + (streamedValues != null ? " and " + streamedValues.length + " streamed value(s)" : "") + ")";
+    }
+
+    /** A param value streamed from a file, as escaped text or base64, at an offset of the body */
+    static final class StreamedValue {
+        private final int offset;
+        private final File file;
+        private final boolean base64;
+
+        StreamedValue(int offset, File file, boolean base64) {
+            this.offset = offset;
+            this.file = file;
+            this.base64 = base64;
+        }
+    }
+}
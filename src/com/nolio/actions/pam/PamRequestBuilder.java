@@ -0,0 +1,338 @@
+package com.nolio.actions.pam;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Builds PAM SOAP requests from pre-serialized envelope fragments.
+ * <p>
+ * The invariant parts of each operation's envelope are encoded to UTF-8 once, when
+ * the class is loaded. Building a request only appends those fragments and the
+ * XML-escaped variable fields (user, password, ROID, process path, params) to a
+ * byte buffer, instead of building and serializing a SAAJ DOM on every call.
+ * <p>
+ * A name:value param is split on its first colon by index, so values may themselves
+ * contain colons. Param values held in files are not read into the buffer; they are
+ * streamed into the connection, as escaped text or as base64, when the request is sent.
+ * <p>
+ * Control characters other than tab, line feed and carriage return cannot be carried by
+ * XML 1.0, not even as character references, so values containing them are rejected
+ * rather than sent to be refused by the server.
+ */
+final class PamRequestBuilder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:itp=\"http://www.ca.com/itpam\">"
+            + "<SOAP-ENV:Header/><SOAP-ENV:Body>";
+    private static final String ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+    private static final String AUTH_START = "<itp:auth><itp:user>";
+    private static final String AUTH_PASSWORD = "</itp:user><itp:password>";
+    private static final String AUTH_END = "</itp:password></itp:auth>";
+
+    // checkServerStatus
+    private static final byte[] STATUS_START = bytes(ENVELOPE_START + "<itp:checkServerStatus>" + AUTH_START);
+    private static final byte[] STATUS_PASSWORD = bytes(AUTH_PASSWORD);
+    private static final byte[] STATUS_END = bytes(AUTH_END + "</itp:checkServerStatus>" + ENVELOPE_END);
+
+    // executeProcess
+    private static final byte[] EXECUTE_START = bytes(ENVELOPE_START + "<itp:executeProcess><itp:flow><itp:name>");
+    private static final byte[] EXECUTE_USER = bytes("</itp:name><itp:action>start</itp:action>" + AUTH_START);
+    private static final byte[] EXECUTE_PASSWORD = bytes(AUTH_PASSWORD);
+    private static final byte[] EXECUTE_PARAMS = bytes(AUTH_END + "<itp:params>");
+    private static final byte[] PARAM_START = bytes("<itp:param name=\"");
+    private static final byte[] PARAM_VALUE = bytes("\">");
+    private static final byte[] PARAM_END = bytes("</itp:param>");
+    private static final byte[] EXECUTE_END = bytes("</itp:params></itp:flow></itp:executeProcess>" + ENVELOPE_END);
+
+    // getProcessStatus
+    private static final byte[] FLOW_STATE_START = bytes(ENVELOPE_START + "<itp:getProcessStatus><itp:flow><itp:ROID>");
+    private static final byte[] FLOW_STATE_USER = bytes("</itp:ROID><itp:action>check</itp:action>" + AUTH_START);
+    private static final byte[] FLOW_STATE_PASSWORD = bytes(AUTH_PASSWORD);
+    private static final byte[] FLOW_STATE_END = bytes(AUTH_END + "</itp:flow></itp:getProcessStatus>" + ENVELOPE_END);
+
+    private static final byte[] AMP = bytes("&amp;");
+    private static final byte[] LT = bytes("&lt;");
+    private static final byte[] GT = bytes("&gt;");
+    private static final byte[] QUOT = bytes("&quot;");
+    private static final byte[] TAB = bytes("&#9;");
+    private static final byte[] LF = bytes("&#10;");
+    private static final byte[] CR = bytes("&#13;");
+
+    private static final int STREAM_CHUNK = 8192;
+
+    private byte[] buffer;
+    private int count;
+    private List<PamRequest.StreamedValue> streamedValues;
+
+    private PamRequestBuilder(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /** Build a checkServerStatus request */
+    static PamRequest checkServerStatus(String user, String password) {
+        PamRequestBuilder builder = new PamRequestBuilder(512);
+        builder.raw(STATUS_START).text(user).raw(STATUS_PASSWORD).text(password).raw(STATUS_END);
+        return builder.build("checkServerStatus");
+    }
+
+    /** Build an executeProcess request; params are in the format of name:value */
+    static PamRequest executeProcess(String processPath, String user, String password, String[] params) {
+        return executeProcess(processPath, user, password, params, null, null, null, false);
+    }
+
+    /**
+     * Build an executeProcess request from any combination of name:value params, parallel
+     * arrays of names and values taken verbatim, and name:path params whose values are
+     * streamed from files, optionally base64 encoded
+     */
+    static PamRequest executeProcess(String processPath, String user, String password, String[] params,
+            String[] paramNames, String[] paramValues, String[] fileParams, boolean base64Files) {
+        PamRequestBuilder builder = new PamRequestBuilder(1024);
+        builder.raw(EXECUTE_START).text(processPath)
+                .raw(EXECUTE_USER).text(user)
+                .raw(EXECUTE_PASSWORD).text(password)
+                .raw(EXECUTE_PARAMS);
+        if (params != null) {
+            for (int i = 0; i < params.length; i++) {
+                String param = params[i];
+                int separator = param != null ? param.indexOf(':') : -1;
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Parameter [" + param + "] is not in the format of name:value");
+                }
+                try {
+                    builder.raw(PARAM_START).escape(param, 0, separator, true)
+                            .raw(PARAM_VALUE).escape(param, separator + 1, param.length(), false)
+                            .raw(PARAM_END);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Parameter [" + param.substring(0, separator) + "]: " + e.getMessage());
+                }
+            }
+        }
+        if (paramNames != null || paramValues != null) {
+            int names = paramNames != null ? paramNames.length : 0;
+            int values = paramValues != null ? paramValues.length : 0;
+            if (names != values) {
+                throw new IllegalArgumentException("Got " + names + " parameter names but " + values + " parameter values");
+            }
+            for (int i = 0; i < names; i++) {
+                try {
+                    builder.raw(PARAM_START).attribute(paramNames[i])
+                            .raw(PARAM_VALUE).text(paramValues[i])
+                            .raw(PARAM_END);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Parameter [" + paramNames[i] + "]: " + e.getMessage());
+                }
+            }
+        }
+        if (fileParams != null) {
+            for (int i = 0; i < fileParams.length; i++) {
+                String param = fileParams[i];
+                int separator = param != null ? param.indexOf(':') : -1;
+                if (separator < 0) {
+                    throw new IllegalArgumentException("File parameter [" + param + "] is not in the format of name:path");
+                }
+                File file = new File(param.substring(separator + 1).trim());
+                if (!file.isFile() || !file.canRead()) {
+                    throw new IllegalArgumentException("File parameter [" + param.substring(0, separator) + "] - unable to read file [" + file + "]");
+                }
+                builder.raw(PARAM_START).escape(param, 0, separator, true).raw(PARAM_VALUE);
+                builder.stream(file, base64Files);
+                builder.raw(PARAM_END);
+            }
+        }
+        builder.raw(EXECUTE_END);
+        return builder.build("ExecuteC2OFlow");
+    }
+
+    /** Build a getProcessStatus request */
+    static PamRequest getProcessStatus(String instanceRoid, String user, String password) {
+        PamRequestBuilder builder = new PamRequestBuilder(512);
+        builder.raw(FLOW_STATE_START).text(instanceRoid)
+                .raw(FLOW_STATE_USER).text(user)
+                .raw(FLOW_STATE_PASSWORD).text(password)
+                .raw(FLOW_STATE_END);
+        return builder.build("GetFlowState");
+    }
+
+    private PamRequest build(String soapAction) {
+        if (streamedValues == null) {
+            return new PamRequest(soapAction, buffer, count);
+        }
+        return new PamRequest(soapAction, buffer, count, streamedValues.toArray(new PamRequest.StreamedValue[streamedValues.size()]));
+    }
+
+    private void stream(File file, boolean base64) {
+        if (streamedValues == null) {
+            streamedValues = new ArrayList<PamRequest.StreamedValue>();
+        }
+        streamedValues.add(new PamRequest.StreamedValue(count, file, base64));
+    }
+
+    /** Write the content of a file to a request body, as escaped UTF-8 text or as base64 */
+    static void streamFile(File file, boolean base64, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (base64) {
+                streamBase64(in, out);
+            } else {
+                streamText(new InputStreamReader(in, UTF_8), out);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("File [" + file + "]: " + e.getMessage() + "; send it as base64 instead");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void streamBase64(InputStream in, OutputStream out) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] chunk = new byte[STREAM_CHUNK / 4 * 3];
+        byte[] encoded = new byte[STREAM_CHUNK];
+        int filled;
+        do {
+            filled = 0;
+            int read;
+            while (filled < chunk.length && (read = in.read(chunk, filled, chunk.length - filled)) > 0) {
+                filled += read;
+            }
+            if (filled == chunk.length) {
+                out.write(encoded, 0, encoder.encode(chunk, encoded));
+            } else if (filled > 0) {
+                out.write(encoder.encode(Arrays.copyOf(chunk, filled)));
+            }
+        } while (filled == chunk.length);
+    }
+
+    private static void streamText(Reader reader, OutputStream out) throws IOException {
+        PamRequestBuilder escaped = new PamRequestBuilder(STREAM_CHUNK * 3 + 16);
+        char[] chunk = new char[STREAM_CHUNK];
+        int carried = 0;
+        int read;
+        while ((read = reader.read(chunk, carried, chunk.length - carried)) > 0) {
+            int end = carried + read;
+            // keep a trailing high surrogate for the next chunk, to escape the pair together
+            int complete = Character.isHighSurrogate(chunk[end - 1]) ? end - 1 : end;
+            escaped.count = 0;
+            escaped.escape(CharBuffer.wrap(chunk), 0, complete, false);
+            out.write(escaped.buffer, 0, escaped.count);
+            carried = end - complete;
+            if (carried > 0) {
+                chunk[0] = chunk[end - 1];
+            }
+        }
+        if (carried > 0) {
+            escaped.count = 0;
+            escaped.escape(CharBuffer.wrap(chunk), 0, carried, false);
+            out.write(escaped.buffer, 0, escaped.count);
+        }
+    }
+
+    private PamRequestBuilder raw(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+        return this;
+    }
+
+    private PamRequestBuilder text(String value) {
+        return value != null ? escape(value, 0, value.length(), false) : this;
+    }
+
+    private PamRequestBuilder attribute(String value) {
+        return value != null ? escape(value, 0, value.length(), true) : this;
+    }
+
+    /** Append part of a value as escaped UTF-8 without creating an intermediate String or byte[] */
+    private PamRequestBuilder escape(CharSequence value, int start, int end, boolean attribute) {
+        ensure(end - start);
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                raw(AMP);
+                continue;
+            case '<':
+                raw(LT);
+                continue;
+            case '>':
+                raw(GT);
+                continue;
+            case '"':
+                if (attribute) {
+                    raw(QUOT);
+                    continue;
+                }
+                break;
+            case '\t':
+                if (attribute) {
+                    raw(TAB);
+                    continue;
+                }
+                break;
+            case '\n':
+                if (attribute) {
+                    raw(LF);
+                    continue;
+                }
+                break;
+            case '\r':
+                raw(CR);
+                continue;
+            default:
+                if (c < 0x20) {
+                    throw new IllegalArgumentException("control character U+" + String.format("%04X", (int) c)
+                            + " at position " + (i - start) + " cannot be sent in XML");
+                }
+                break;
+            }
+            if (c < 0x80) {
+                ensure(1);
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, not representable in XML
+                ensure(1);
+                buffer[count++] = (byte) '?';
+            } else {
+                ensure(3);
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    private void ensure(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, count + extra));
+        }
+    }
+
+    private static byte[] bytes(String fragment) {
+        return fragment.getBytes(UTF_8);
+    }
+}
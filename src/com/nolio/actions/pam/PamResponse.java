@@ -0,0 +1,80 @@
+package com.nolio.actions.pam;
+
+/** Items of interest decoded from a PAM SOAP response; immutable once decoded */
+public final class PamResponse {
+
+    private String faultString;
+    private String serverStatus;
+    private String instanceRoid;
+    private String flowState;
+    private PamDataset dataset = PamDataset.EMPTY;
+    private byte[] fingerprint;
+
+    public boolean hasFault() {
+        return faultString != null;
+    }
+
+    public String getFaultString() {
+        return faultString;
+    }
+
+    void setFaultString(String faultString) {
+        this.faultString = faultString;
+    }
+
+    public String getServerStatus() {
+        return serverStatus;
+    }
+
+    void setServerStatus(String serverStatus) {
+        this.serverStatus = serverStatus;
+    }
+
+    public String getInstanceRoid() {
+        return instanceRoid;
+    }
+
+    void setInstanceRoid(String instanceRoid) {
+        this.instanceRoid = instanceRoid;
+    }
+
+    public String getFlowState() {
+        return flowState;
+    }
+
+    void setFlowState(String flowState) {
+        this.flowState = flowState;
+    }
+
+    /** Whether the flow-state is terminal (Completed, Failed or Aborted) */
+    public boolean isEnded() {
+        return PamWait.isTerminal(flowState);
+    }
+
+    /** The dataset as name:value lines */
+    public String getDatasetText() {
+        return dataset.toText();
+    }
+
+    /** Values of the given dataset params, in the same order (empty where there is no such param) */
+    public String[] getDatasetValues(String[] names) {
+        return PamDatasetFilter.select(dataset, names);
+    }
+
+    PamDataset getDataset() {
+        return dataset;
+    }
+
+    void setDataset(PamDataset dataset) {
+        this.dataset = dataset;
+    }
+
+    /** Digest of the raw body this was decoded from, or null if the body was not fingerprinted */
+    byte[] getFingerprint() {
+        return fingerprint;
+    }
+
+    void setFingerprint(byte[] fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+}
@@ -0,0 +1,213 @@
+package com.nolio.actions.pam;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass StAX decoder for PAM SOAP responses.
+ * <p>
+ * Pulls the SOAP fault string, {@code serverStatus}, {@code ROID}, {@code flow-state}
+ * and the {@code params/param} dataset straight from the HTTP input stream without
+ * building a DOM. Param values are copied from the parser's buffer into a
+ * {@link PamDataset} without creating a String per value. Elements are matched on local name only, like the XPath
+ * expressions this replaces, and the first occurrence of a single-valued element wins.
+ * Readers come from the factory shared through {@link PamXml}.
+ */
+final class PamResponseParser {
+
+    private static final String SOAP_ENVELOPE_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+
+    private PamResponseParser() {
+    }
+
+    /** Decode a response; encoding may be null to use the one declared in the XML prolog */
+    static PamResponse parse(InputStream in, String encoding) throws XMLStreamException, IOException {
+        return parse(in, encoding, null);
+    }
+
+    /** Decode a response, keeping only the dataset params accepted by the filter (all of them if null) */
+    static PamResponse parse(InputStream in, String encoding, PamDatasetFilter filter) throws XMLStreamException, IOException {
+        XMLInputFactory factory = PamXml.inputFactory();
+        XMLStreamReader reader = encoding != null
+                ? factory.createXMLStreamReader(in, encoding)
+                : factory.createXMLStreamReader(in);
+        try {
+            return parse(reader, filter);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static PamResponse parse(XMLStreamReader reader, PamDatasetFilter filter) throws XMLStreamException, IOException {
+        PamResponse response = new PamResponse();
+        PamDataset.Builder dataset = new PamDataset.Builder();
+        try {
+            parse(reader, filter, response, dataset);
+            response.setDataset(dataset.build());
+        } finally {
+            dataset.discard();
+        }
+        return response;
+    }
+
+    private static void parse(XMLStreamReader reader, PamDatasetFilter filter, PamResponse response, PamDataset.Builder dataset)
+            throws XMLStreamException, IOException {
+        int paramsDepth = -1;
+        int depth = 0;
+        boolean inFault = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth < paramsDepth) {
+                    paramsDepth = -1;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            String name = reader.getLocalName();
+            if (paramsDepth > 0 && depth == paramsDepth + 1 && "param".equals(name)) {
+                String paramName = reader.getAttributeValue(null, "name");
+                if (filter == null || filter.accepts(paramName != null ? paramName : "")) {
+                    dataset.startParam(paramName);
+                    appendText(reader, dataset);
+                    dataset.endParam();
+                } else {
+                    skipElement(reader);
+                }
+                depth--;
+            } else if ("params".equals(name)) {
+                paramsDepth = depth;
+            } else if ("flow-state".equals(name)) {
+                depth--;
+                String text = readText(reader);
+                if (response.getFlowState() == null) {
+                    response.setFlowState(text);
+                }
+            } else if ("ROID".equals(name)) {
+                depth--;
+                String text = readText(reader);
+                if (response.getInstanceRoid() == null) {
+                    response.setInstanceRoid(text);
+                }
+            } else if ("serverStatus".equals(name)) {
+                depth--;
+                String text = readText(reader);
+                if (response.getServerStatus() == null) {
+                    response.setServerStatus(text);
+                }
+            } else if ("Fault".equals(name) && SOAP_ENVELOPE_NS.equals(reader.getNamespaceURI())) {
+                inFault = true;
+                response.setFaultString("");
+            } else if (inFault && "faultstring".equals(name)) {
+                depth--;
+                response.setFaultString(readText(reader));
+                inFault = false;
+            }
+        }
+        if (response.getFlowState() == null) {
+            response.setFlowState("");
+        }
+        if (response.getInstanceRoid() == null) {
+            response.setInstanceRoid("");
+        }
+        if (response.getServerStatus() == null) {
+            response.setServerStatus("");
+        }
+    }
+
+    /** Read the text content of the current element, skipping any nested elements, and consume its end tag */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = null;
+        String first = null;
+        int nested = 0;
+        while (true) {
+            int event = reader.next();
+            switch (event) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (nested == 0) {
+                    if (first == null) {
+                        first = reader.getText();
+                    } else {
+                        if (text == null) {
+                            text = new StringBuilder(first);
+                        }
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                }
+                break;
+            case XMLStreamConstants.START_ELEMENT:
+                nested++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (nested == 0) {
+                    return text != null ? text.toString() : first != null ? first : "";
+                }
+                nested--;
+                break;
+            case XMLStreamConstants.END_DOCUMENT:
+                throw new XMLStreamException("Unexpected end of SOAP response");
+            default:
+                break;
+            }
+        }
+    }
+
+    /** Append the text content of the current element to the dataset, skipping any nested elements, and consume its end tag */
+    private static void appendText(XMLStreamReader reader, PamDataset.Builder dataset) throws XMLStreamException, IOException {
+        int nested = 0;
+        while (true) {
+            int event = reader.next();
+            switch (event) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (nested == 0) {
+                    dataset.appendValue(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+                break;
+            case XMLStreamConstants.START_ELEMENT:
+                nested++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (nested == 0) {
+                    return;
+                }
+                nested--;
+                break;
+            case XMLStreamConstants.END_DOCUMENT:
+                throw new XMLStreamException("Unexpected end of SOAP response");
+            default:
+                break;
+            }
+        }
+    }
+
+    /** Consume the current element up to and including its end tag without reading any of its content */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int nested = 0;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                nested++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (nested == 0) {
+                    return;
+                }
+                nested--;
+            } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new XMLStreamException("Unexpected end of SOAP response");
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.nolio.actions.pam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Routes the calls of a PAM client across the orchestrator nodes of a cluster.
+ * <p>
+ * A Domain URL may list several nodes, separated by commas, semicolons or spaces. Calls
+ * that start something go to the node with the lowest expected wait: the moving average
+ * of its answer time, kept by its {@link PamServerHealth} from real calls and from
+ * checkServerStatus probes sent every {@code pam.route.probeIntervalMillis} (default
+ * 30000), scaled up by the calls in flight and queued on it relative to its concurrency
+ * limit. Nodes whose circuit breaker is open are skipped, and nodes not measured yet are
+ * tried first. If a node cannot be reached the call fails over to the next best one;
+ * a call that reached a node is never sent again, since it may have started a process.
+ * <p>
+ * The node that started an instance owns its ROID: status calls and waits for that ROID
+ * go to the same node. Ownership is remembered for the last
+ * {@code pam.route.maxOwners} (default 10000) instances; the owner of a ROID that was
+ * started elsewhere, e.g. before an agent restart or by another agent, is looked up when
+ * the ROID is first seen by asking the nodes in turn, best first, until one knows it.
+ * <p>
+ * Routers are shared by the actions that name the same nodes, however the list is
+ * written.
+ * <p>
+ * A single Domain URL routes straight to its transport.
+ */
+final class PamRouter {
+
+    static final long PROBE_INTERVAL_MILLIS = Long.getLong("pam.route.probeIntervalMillis", 30000L);
+    static final int MAX_OWNERS = Integer.getInteger("pam.route.maxOwners", 10000);
+
+    private static final Logger log = Logger.getLogger(PamRouter.class);
+    private static final ConcurrentMap<String, PamRouter> REGISTRY = new ConcurrentHashMap<String, PamRouter>();
+
+    private final String domainUrls;
+    private final List<String> domains;
+    private final Map<String, String> owners = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_OWNERS;
+        }
+    };
+
+    private PamRouter(List<String> domains) {
+        this.domains = Collections.unmodifiableList(domains);
+        this.domainUrls = join(domains);
+    }
+
+    /** Return the router of one Domain URL or of a list of them, creating it on first use */
+    static PamRouter forDomains(String domainUrls) {
+        List<String> domains = split(domainUrls == null ? "" : domainUrls);
+        String key = join(domains);
+        PamRouter router = REGISTRY.get(key);
+        if (router == null) {
+            PamRouter created = new PamRouter(domains);
+            router = REGISTRY.putIfAbsent(key, created);
+            if (router == null) {
+                router = created;
+                if (created.isCluster()) {
+                    for (String domain : created.domains) {
+                        PamServerHealth.forDomain(domain).probeEvery(PROBE_INTERVAL_MILLIS);
+                    }
+                }
+            }
+        }
+        return router;
+    }
+
+    /** Split a list of Domain URLs into normalized, distinct URLs; an empty list yields one empty URL */
+    static List<String> split(String domainUrls) {
+        List<String> domains = new ArrayList<String>();
+        for (String domain : domainUrls.trim().split("[,;\\s]+")) {
+            String normalized = PamTransport.normalize(domain);
+            if (normalized.length() > 0 && !domains.contains(normalized)) {
+                domains.add(normalized);
+            }
+        }
+        if (domains.isEmpty()) {
+            domains.add("");
+        }
+        return domains;
+    }
+
+    private static String join(List<String> domains) {
+        StringBuilder joined = new StringBuilder();
+        for (String domain : domains) {
+            joined.append(joined.length() > 0 ? "," : "").append(domain);
+        }
+        return joined.toString();
+    }
+
+    /** The normalized Domain URLs, joined by commas */
+    String getDomainUrls() {
+        return domainUrls;
+    }
+
+    List<String> getDomains() {
+        return domains;
+    }
+
+    boolean isCluster() {
+        return domains.size() > 1;
+    }
+
+    /** Send a request to the best node, failing over to the next best ones while nodes cannot be reached */
+    PamResponse call(PamRequest request, int readTimeoutMillis) throws Exception {
+        if (!isCluster()) {
+            return PamTransport.forDomain(domains.get(0)).call(request, readTimeoutMillis);
+        }
+        PamConnectException failure = null;
+        for (String domain : rank()) {
+            try {
+                PamResponse response = PamTransport.forDomain(domain).call(request, readTimeoutMillis);
+                String roid = response.getInstanceRoid();
+                if (roid != null && roid.length() > 0) {
+                    setOwner(roid, domain);
+                }
+                return response;
+            } catch (PamConnectException e) {
+                log.warn(e.getMessage() + " Trying the next node of [" + domainUrls + "]");
+                failure = e;
+            }
+        }
+        throw new PamConnectException("Unable to connect to any node of [" + domainUrls + "]. Last error: "
+                + (failure != null ? failure.getMessage() : ""));
+    }
+
+    /**
+     * The node that owns an instance. The owner of a ROID seen for the first time is looked
+     * up by sending statusRequest, its getProcessStatus request, to the nodes in turn, best
+     * first, until one of them knows the instance; the answer is cached like any status.
+     */
+    String ownerOf(String instanceRoid, PamRequest statusRequest) throws Exception {
+        if (!isCluster()) {
+            return domains.get(0);
+        }
+        if (instanceRoid == null || instanceRoid.length() == 0) {
+            return rank().get(0);
+        }
+        synchronized (owners) {
+            String owner = owners.get(instanceRoid);
+            if (owner != null) {
+                return owner;
+            }
+        }
+        Exception failure = null;
+        for (String domain : rank()) {
+            try {
+                PamResponse response = PamStatusCache.getInstance().get(domain, statusRequest);
+                if (response.getFlowState() != null && response.getFlowState().length() > 0) {
+                    log.info("Process Instance [" + instanceRoid + "] is owned by [" + domain + "]");
+                    setOwner(instanceRoid, domain);
+                    return domain;
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        throw new Exception("Process Instance [" + instanceRoid + "] is not known to any node of [" + domainUrls + "]"
+                + (failure != null ? ". Last error: " + failure.getMessage() : ""));
+    }
+
+    private void setOwner(String instanceRoid, String domain) {
+        synchronized (owners) {
+            owners.put(instanceRoid, domain);
+        }
+    }
+
+    /** Nodes from best to worst, available ones first; ties keep the configured order */
+    List<String> rank() {
+        final Map<String, Double> scores = new LinkedHashMap<String, Double>();
+        for (String domain : domains) {
+            scores.put(domain, score(domain));
+        }
+        List<String> ranked = new ArrayList<String>(domains);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(scores.get(a), scores.get(b));
+            }
+        });
+        return ranked;
+    }
+
+    /** Expected wait on a node: its answer time, scaled by its load; unavailable nodes sort last */
+    private static double score(String domain) {
+        PamServerHealth health = PamServerHealth.forDomain(domain);
+        if (!health.isAvailable()) {
+            return Double.MAX_VALUE;
+        }
+        double latency = health.getLatencyMillis();
+        if (latency < 0) {
+            return 0;
+        }
+        PamAdmission admission = PamAdmission.forDomain(domain);
+        return latency * (1 + (double) (admission.getInFlight() + admission.getQueueLength()) / admission.getLimit());
+    }
+}
@@ -0,0 +1,238 @@
+package com.nolio.actions.pam;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Health of one PAM domain, with a circuit breaker in front of its transport.
+ * <p>
+ * The outcome of every real call feeds the breaker: any response from the server,
+ * SOAP faults included, counts as healthy, while failing to connect counts against it.
+ * After {@code pam.health.failureThreshold} (default 3) consecutive connect failures the
+ * breaker opens and calls fail fast instead of each waiting out a connect timeout.
+ * While open, the domain is probed in the background with checkServerStatus, every
+ * {@code pam.health.openMillis} (default 30000) doubling up to
+ * {@code pam.health.maxOpenMillis} (default 300000). A probe that gets any answer closes
+ * the breaker; once the open period has elapsed, a single real call is also let through
+ * (half-open) and closes or re-opens the breaker depending on its outcome.
+ * <p>
+ * If {@code pam.health.probeIntervalMillis} is set, domains that have been used are also
+ * probed at that interval while healthy, so an outage is detected before a real call hits it.
+ * Probes log in with the credentials of the latest {@link PamClient} of the domain, so that
+ * they do not show up as failed logins on the PAM server; none is sent before a client has
+ * given credentials.
+ * The breaker state, the last server status and the time of the last check are published
+ * through {@link PamMetrics}.
+ * <p>
+ * The record also keeps a moving average of the time the server takes to answer, fed by
+ * real calls and probes alike, which {@link PamRouter} uses to pick among the nodes of a
+ * cluster.
+ */
+final class PamServerHealth {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int FAILURE_THRESHOLD = Integer.getInteger("pam.health.failureThreshold", 3);
+    static final long OPEN_MILLIS = Long.getLong("pam.health.openMillis", 30000L);
+    static final long MAX_OPEN_MILLIS = Long.getLong("pam.health.maxOpenMillis", 300000L);
+    static final long PROBE_INTERVAL_MILLIS = Long.getLong("pam.health.probeIntervalMillis", 0L);
+
+    private static final Logger log = Logger.getLogger(PamServerHealth.class);
+    private static final ConcurrentMap<String, PamServerHealth> REGISTRY = new ConcurrentHashMap<String, PamServerHealth>();
+    private static final ScheduledExecutorService PROBES = Executors.newSingleThreadScheduledExecutor(
+            PamWaitScheduler.daemonThreads("PAM-Health-Probe"));
+
+    private final String domainUrl;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openMillis = OPEN_MILLIS;
+    /** System.nanoTime() at which the open period ends */
+    private long retryAt;
+    private boolean trialInFlight;
+    private boolean probeScheduled;
+    private String lastServerStatus = "";
+    private long lastCheckedAt;
+    private long probeIntervalMillis = PROBE_INTERVAL_MILLIS;
+    private double latencyNanos = -1;
+    private String probeUsername;
+    private String probePassword;
+    private volatile PamRequest probeRequest;
+
+    private PamServerHealth(String domainUrl) {
+        this.domainUrl = domainUrl;
+    }
+
+    /** Return the health record of a domain, creating it on first use */
+    static PamServerHealth forDomain(String domainUrl) {
+        String key = PamTransport.normalize(domainUrl);
+        PamServerHealth health = REGISTRY.get(key);
+        if (health == null) {
+            PamServerHealth created = new PamServerHealth(key);
+            health = REGISTRY.putIfAbsent(key, created);
+            if (health == null) {
+                health = created;
+                if (PROBE_INTERVAL_MILLIS > 0) {
+                    created.scheduleProbe(PROBE_INTERVAL_MILLIS);
+                }
+            }
+        }
+        return health;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /** Whether calls to this domain are currently let through */
+    synchronized boolean isAvailable() {
+        return state == State.CLOSED || (state == State.OPEN && System.nanoTime() - retryAt >= 0);
+    }
+
+    /** Last server status reported by a checkServerStatus call or probe */
+    synchronized String getLastServerStatus() {
+        return lastServerStatus;
+    }
+
+    synchronized long getLastCheckedAt() {
+        return lastCheckedAt;
+    }
+
+    /** Moving average of the time the server took to answer, in milliseconds; -1 before the first answer */
+    synchronized double getLatencyMillis() {
+        return latencyNanos < 0 ? -1 : latencyNanos / 1000000;
+    }
+
+    /** Record the time an answered call took, from being sent to being decoded */
+    synchronized void recordLatency(long nanos) {
+        latencyNanos = latencyNanos < 0 ? nanos : latencyNanos + 0.2 * (nanos - latencyNanos);
+    }
+
+    /** Log in with these credentials in the checkServerStatus probes, from the latest client of the domain */
+    synchronized void setProbeCredentials(String username, String password) {
+        if (!username.equals(probeUsername) || !password.equals(probePassword)) {
+            probeUsername = username;
+            probePassword = password;
+            probeRequest = PamRequestBuilder.checkServerStatus(username, password);
+        }
+    }
+
+    /** Probe this domain at least every intervalMillis while healthy, as well as while the breaker is open */
+    void probeEvery(long intervalMillis) {
+        synchronized (this) {
+            if (intervalMillis <= 0 || (probeIntervalMillis > 0 && probeIntervalMillis <= intervalMillis)) {
+                return;
+            }
+            probeIntervalMillis = intervalMillis;
+        }
+        scheduleProbe(intervalMillis);
+    }
+
+    /** Fail fast while the breaker is open; let a single trial call through once the open period has elapsed */
+    synchronized void beforeCall() throws PamConnectException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (state == State.OPEN && now - retryAt >= 0 && !trialInFlight) {
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+            return;
+        }
+        throw new PamConnectException("Unable to connect to [" + domainUrl + "]. Server is marked unavailable after "
+                + consecutiveFailures + " consecutive connection failures; retrying in " + Math.max(0, TimeUnit.NANOSECONDS.toSeconds(retryAt - now)) + " seconds.");
+    }
+
+    /** Record that the server answered, with or without a SOAP fault */
+    void onSuccess(PamResponse response) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            openMillis = OPEN_MILLIS;
+            trialInFlight = false;
+            lastCheckedAt = System.currentTimeMillis();
+            if (response != null && response.getServerStatus().length() > 0) {
+                lastServerStatus = response.getServerStatus();
+            }
+        }
+        if (previous != State.CLOSED) {
+            log.info("PAM server [" + domainUrl + "] is reachable again");
+        }
+    }
+
+    /** Record that the server could not be reached */
+    void onConnectFailure() {
+        boolean opened = false;
+        synchronized (this) {
+            consecutiveFailures++;
+            lastCheckedAt = System.currentTimeMillis();
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+                if (state == State.HALF_OPEN) {
+                    openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+                }
+                state = State.OPEN;
+                retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMillis);
+                trialInFlight = false;
+                opened = true;
+            }
+        }
+        if (opened) {
+            log.warn("PAM server [" + domainUrl + "] marked unavailable after " + consecutiveFailures + " consecutive connection failures");
+            scheduleProbe(openMillis);
+        }
+    }
+
+    /** Record the end of a call that neither reached a verdict on the server nor failed to connect */
+    synchronized void onInconclusive() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            trialInFlight = false;
+        }
+    }
+
+    private void scheduleProbe(long delayMillis) {
+        synchronized (this) {
+            if (probeScheduled) {
+                return;
+            }
+            probeScheduled = true;
+        }
+        PROBES.schedule(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        synchronized (this) {
+            probeScheduled = false;
+        }
+        PamRequest request = probeRequest;
+        if (request != null) {
+            try {
+                PamTransport.forDomain(domainUrl).probe(request);
+            } catch (Exception e) {
+                // outcome already recorded by the transport
+            }
+        }
+        long next;
+        synchronized (this) {
+            if (state != State.CLOSED) {
+                next = openMillis;
+            } else if (probeIntervalMillis > 0) {
+                next = probeIntervalMillis;
+            } else {
+                return;
+            }
+        }
+        scheduleProbe(next);
+    }
+}
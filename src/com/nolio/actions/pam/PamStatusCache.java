@@ -0,0 +1,195 @@
+package com.nolio.actions.pam;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of getProcessStatus responses, shared by PAMGetProcessStatus and
+ * PAMWaitForProcessEnd.
+ * <p>
+ * Entries are keyed by domain and request, that is by domain, ROID and credentials,
+ * so a cached status is only served to a caller that would have sent the very same
+ * request. Concurrent lookups of the same key that miss the cache share a single
+ * round-trip. Besides the number of entries, the cache is bounded by the dataset
+ * characters it holds on the heap, so that large terminal datasets cannot pin the memory
+ * that {@link PamDataset} keeps off the heap; a response whose dataset alone exceeds the
+ * bound is not cached. Tunable through system properties on the agent JVM:
+ * <ul>
+ * <li>{@code pam.statusCache.ttlMillis} - lifetime of a running status (default 5000)</li>
+ * <li>{@code pam.statusCache.terminalTtlMillis} - lifetime of a Completed, Failed or Aborted status (default 300000)</li>
+ * <li>{@code pam.statusCache.maxEntries} - entries kept before the least recently used is evicted (default 1000)</li>
+ * <li>{@code pam.statusCache.maxDatasetChars} - dataset characters kept on the heap before the least recently used entries are evicted (default 4194304)</li>
+ * </ul>
+ */
+final class PamStatusCache {
+
+    static final long TTL_MILLIS = Long.getLong("pam.statusCache.ttlMillis", 5000L);
+    static final long TERMINAL_TTL_MILLIS = Long.getLong("pam.statusCache.terminalTtlMillis", 300000L);
+    static final int MAX_ENTRIES = Integer.getInteger("pam.statusCache.maxEntries", 1000);
+    static final long MAX_DATASET_CHARS = Long.getLong("pam.statusCache.maxDatasetChars", 4194304L);
+
+    private static final PamStatusCache INSTANCE = new PamStatusCache();
+
+    private final Map<Key, CachedStatus> entries = new LinkedHashMap<Key, CachedStatus>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedStatus> eldest) {
+            if (size() > MAX_ENTRIES) {
+                datasetChars -= eldest.getValue().datasetChars;
+                return true;
+            }
+            return false;
+        }
+    };
+    private final ConcurrentMap<Key, CompletableFuture<PamResponse>> inFlight = new ConcurrentHashMap<Key, CompletableFuture<PamResponse>>();
+    private long datasetChars;
+
+    private PamStatusCache() {
+    }
+
+    static PamStatusCache getInstance() {
+        return INSTANCE;
+    }
+
+    /** Return a status no older than the configured TTL, fetching it if needed */
+    PamResponse get(String domainUrl, PamRequest request) throws Exception {
+        return get(domainUrl, request, TTL_MILLIS);
+    }
+
+    /**
+     * Return a status younger than maxAgeMillis, fetching it if needed. Terminal states
+     * are served for the terminal TTL regardless of maxAgeMillis, since they never change.
+     */
+    PamResponse get(String domainUrl, PamRequest request, long maxAgeMillis) throws Exception {
+        return get(domainUrl, request, maxAgeMillis, null);
+    }
+
+    /**
+     * Return a status younger than maxAgeMillis, fetching it if needed. A fetched response
+     * that is identical to previous, or else to the expired cached one, is not decoded
+     * again and that response is returned instead.
+     */
+    PamResponse get(String domainUrl, PamRequest request, long maxAgeMillis, PamResponse previous) throws Exception {
+        Key key = new Key(PamTransport.normalize(domainUrl), request);
+        CachedStatus cached = lookup(key);
+        if (cached != null && cached.isFresh(System.nanoTime(), Math.min(maxAgeMillis, TTL_MILLIS))) {
+            return cached.response;
+        }
+
+        CompletableFuture<PamResponse> call = new CompletableFuture<PamResponse>();
+        CompletableFuture<PamResponse> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            return join(existing);
+        }
+        PamResponse response;
+        try {
+            response = PamTransport.forDomain(key.domainUrl).callStatus(request,
+                    previous != null ? previous : cached != null ? cached.response : null);
+            put(key, response);
+        } catch (Throwable t) {
+            inFlight.remove(key, call);
+            call.completeExceptionally(t);
+            throw t;
+        }
+        // removed before completing, so a lookup that arrives later sends a call of its own
+        inFlight.remove(key, call);
+        call.complete(response);
+        return response;
+    }
+
+    /** Forget every cached status */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            datasetChars = 0;
+        }
+    }
+
+    private CachedStatus lookup(Key key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void put(Key key, PamResponse response) {
+        CachedStatus cached = new CachedStatus(response, System.nanoTime());
+        synchronized (entries) {
+            CachedStatus replaced = cached.datasetChars > MAX_DATASET_CHARS ? entries.remove(key) : entries.put(key, cached);
+            if (replaced != null) {
+                datasetChars -= replaced.datasetChars;
+            }
+            if (cached.datasetChars > MAX_DATASET_CHARS) {
+                return;
+            }
+            datasetChars += cached.datasetChars;
+            Iterator<CachedStatus> eldest = entries.values().iterator();
+            while (datasetChars > MAX_DATASET_CHARS && eldest.hasNext()) {
+                datasetChars -= eldest.next().datasetChars;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static PamResponse join(CompletableFuture<PamResponse> call) throws Exception {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static final class CachedStatus {
+        private final PamResponse response;
+        /** System.nanoTime() at which the response was fetched */
+        private final long fetchedAt;
+        private final boolean terminal;
+        private final long datasetChars;
+
+        CachedStatus(PamResponse response, long fetchedAt) {
+            this.response = response;
+            this.fetchedAt = fetchedAt;
+            this.terminal = PamWait.isTerminal(response.getFlowState());
+            PamDataset dataset = response.getDataset();
+            this.datasetChars = dataset.isSpilled() ? 0 : dataset.getValueLength();
+        }
+
+        boolean isFresh(long now, long maxAgeMillis) {
+            return now - fetchedAt < TimeUnit.MILLISECONDS.toNanos(terminal ? TERMINAL_TTL_MILLIS : maxAgeMillis);
+        }
+    }
+
+    private static final class Key {
+        private final String domainUrl;
+        private final PamRequest request;
+
+        Key(String domainUrl, PamRequest request) {
+            this.domainUrl = domainUrl;
+            this.request = request;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return domainUrl.equals(other.domainUrl) && request.equals(other.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * domainUrl.hashCode() + request.hashCode();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.nolio.actions.pam;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Optional trace span of a PAM call or wait, carrying the process instance ROID.
+ * <p>
+ * Off unless {@code pam.trace.enabled} is true, in which case every ended span is logged
+ * on one line by the {@code com.nolio.actions.pam.PamTrace} logger, with its start time,
+ * duration, outcome and the offsets of the events recorded on it. While off,
+ * {@link #start} returns a shared span that ignores everything.
+ */
+final class PamTrace {
+
+    static final boolean ENABLED = Boolean.getBoolean("pam.trace.enabled");
+
+    private static final Logger log = Logger.getLogger(PamTrace.class);
+    private static final PamTrace DISABLED = new PamTrace();
+
+    private final String operation;
+    private final String domainUrl;
+    private final long startedAt;
+    private final long startNanos;
+    private final StringBuilder events;
+    private volatile String instanceRoid;
+
+    private PamTrace() {
+        this.operation = null;
+        this.domainUrl = null;
+        this.startedAt = 0;
+        this.startNanos = 0;
+        this.events = null;
+    }
+
+    private PamTrace(String operation, String domainUrl, String instanceRoid) {
+        this.operation = operation;
+        this.domainUrl = domainUrl;
+        this.instanceRoid = instanceRoid;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.events = new StringBuilder(64);
+    }
+
+    static PamTrace start(String operation, String domainUrl) {
+        return start(operation, domainUrl, null);
+    }
+
+    static PamTrace start(String operation, String domainUrl, String instanceRoid) {
+        return ENABLED ? new PamTrace(operation, domainUrl, instanceRoid) : DISABLED;
+    }
+
+    /** Attach the ROID, once known */
+    PamTrace roid(String instanceRoid) {
+        if (events != null && instanceRoid != null && instanceRoid.length() > 0) {
+            this.instanceRoid = instanceRoid;
+        }
+        return this;
+    }
+
+    /** Record that something happened now, e.g. a phase ending or a status being seen */
+    PamTrace event(String name) {
+        if (events != null) {
+            synchronized (events) {
+                events.append(events.length() == 0 ? "" : ", ").append(name).append('@').append(elapsedMillis()).append("ms");
+            }
+        }
+        return this;
+    }
+
+    void end(String outcome) {
+        if (events == null) {
+            return;
+        }
+        String recorded;
+        synchronized (events) {
+            recorded = events.toString();
+        }
+        log.info("span=" + operation + " domain=" + domainUrl + " roid=" + (instanceRoid != null ? instanceRoid : "")
+                + " start=" + startedAt + " duration=" + elapsedMillis() + "ms outcome=" + outcome + " events=[" + recorded + "]");
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+}
@@ -0,0 +1,534 @@
+package com.nolio.actions.pam;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Shared SOAP transport for one PAM domain, used by all PAM actions.
+ * <p>
+ * Requests go over {@link HttpURLConnection}, whose keep-alive cache reuses sockets
+ * to the same host as long as every response body is fully read and closed, which
+ * this class guarantees on both the success and the failure path. Every request waits
+ * its turn in the domain's {@link PamAdmission}, which bounds the requests in flight,
+ * lowering the bound when the server slows down, times out, cannot be reached or answers
+ * HTTP 503 or 429, and optionally their rate,
+ * so that a burst of actions neither opens an unbounded number of sockets to one PAM
+ * server nor drives it into overload.
+ * <p>
+ * Tunable through system properties on the agent JVM:
+ * <ul>
+ * <li>{@code pam.transport.maxConnections} - most concurrent requests per domain (default 10)</li>
+ * <li>{@code pam.transport.connectTimeoutMillis} - connect timeout (default 30000)</li>
+ * <li>{@code pam.transport.readTimeoutMillis} - read timeout (default 300000)</li>
+ * <li>{@code pam.transport.fingerprintMaxBytes} - largest status response that is fingerprinted (default 262144)</li>
+ * <li>{@code pam.transport.acceptCompression} - ask for gzip or deflate compressed responses (default true)</li>
+ * <li>{@code pam.transport.compressRequests} - send gzip compressed requests, for servers that accept them (default false)</li>
+ * <li>{@code pam.transport.compressMinBytes} - smallest request that is compressed (default 8192; requests streaming files always are)</li>
+ * </ul>
+ * Idle keep-alive sockets per host are governed by the standard {@code http.maxConnections}
+ * property and should be set to at least {@code pam.transport.maxConnections}.
+ * <p>
+ * Every call goes through the domain's {@link PamServerHealth} circuit breaker, and its
+ * queueing, connect, send, server and parse times are recorded in the domain's
+ * {@link PamMetrics} and, when tracing is on, in a {@link PamTrace} span.
+ * <p>
+ * Status polls of a long wait mostly get back the very same bytes. For those, the body is
+ * read into memory and digested, and when the digest matches that of the previous
+ * response the previous, immutable {@link PamResponse} is returned without decoding.
+ * <p>
+ * Bodies stream in both directions: requests are written, and compressed if enabled, as
+ * they are serialized and responses are decompressed and decoded as they arrive. The
+ * request and response sizes, both on the wire and uncompressed, are recorded per
+ * operation in {@link PamMetrics}.
+ */
+final class PamTransport {
+
+    static final int MAX_CONNECTIONS = Integer.getInteger("pam.transport.maxConnections", 10);
+    static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("pam.transport.connectTimeoutMillis", 30000);
+    static final int READ_TIMEOUT_MILLIS = Integer.getInteger("pam.transport.readTimeoutMillis", 300000);
+    static final int FINGERPRINT_MAX_BYTES = Integer.getInteger("pam.transport.fingerprintMaxBytes", 262144);
+    static final boolean ACCEPT_COMPRESSION = Boolean.parseBoolean(System.getProperty("pam.transport.acceptCompression", "true"));
+    static final boolean COMPRESS_REQUESTS = Boolean.getBoolean("pam.transport.compressRequests");
+    static final int COMPRESS_MIN_BYTES = Integer.getInteger("pam.transport.compressMinBytes", 8192);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final ConcurrentMap<String, PamTransport> TRANSPORTS = new ConcurrentHashMap<String, PamTransport>();
+
+    private final String domainUrl;
+    private final URL soapUrl;
+    private final PamAdmission admission;
+    private final PamServerHealth health;
+    private final PamMetrics metrics;
+
+    private PamTransport(String domainUrl) throws IOException {
+        this.domainUrl = domainUrl;
+        this.soapUrl = new URL(domainUrl + "/soap");
+        this.admission = PamAdmission.forDomain(domainUrl);
+        this.health = PamServerHealth.forDomain(domainUrl);
+        this.metrics = PamMetrics.forDomain(domainUrl);
+    }
+
+    /** Return the shared transport for a domain URL such as http://pamserver:8080/itpam */
+    static PamTransport forDomain(String domainUrl) throws Exception {
+        String key = normalize(domainUrl);
+        PamTransport transport = TRANSPORTS.get(key);
+        if (transport == null) {
+            PamTransport created;
+            try {
+                created = new PamTransport(key);
+            } catch (IOException e) {
+                throw new Exception("Invalid Domain URL [" + domainUrl + "]: " + e.getMessage());
+            }
+            transport = TRANSPORTS.putIfAbsent(key, created);
+            if (transport == null) {
+                transport = created;
+            }
+        }
+        return transport;
+    }
+
+    static String normalize(String domainUrl) {
+        String url = domainUrl == null ? "" : domainUrl.trim();
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        return url;
+    }
+
+    String getDomainUrl() {
+        return domainUrl;
+    }
+
+    /** Send a SOAP request and return the decoded response, throwing on connect failures and SOAP faults */
+    PamResponse call(PamRequest request) throws Exception {
+        return call(request, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Send a SOAP request, giving up if it is not admitted or the server does not answer
+     * within readTimeoutMillis; the time spent waiting for admission counts against it
+     */
+    PamResponse call(PamRequest request, int readTimeoutMillis) throws Exception {
+        try {
+            health.beforeCall();
+        } catch (PamConnectException e) {
+            metrics.onRejected();
+            throw e;
+        }
+        return send(request, readTimeoutMillis, false, false, null);
+    }
+
+    /**
+     * Send a status request whose answer is often unchanged, fingerprinting the response; if
+     * it is byte for byte the one previous was decoded from, previous is returned as is.
+     * previous may be null, or a response decoded for the same request.
+     */
+    PamResponse callStatus(PamRequest request, PamResponse previous) throws Exception {
+        try {
+            health.beforeCall();
+        } catch (PamConnectException e) {
+            metrics.onRejected();
+            throw e;
+        }
+        return send(request, READ_TIMEOUT_MILLIS, false, true, previous);
+    }
+
+    /**
+     * Send a health probe, bypassing the circuit breaker and admission control, so that
+     * probes neither wait behind nor take the place of real calls; a SOAP fault is returned
+     * rather than thrown
+     */
+    PamResponse probe(PamRequest request) throws Exception {
+        return send(request, READ_TIMEOUT_MILLIS, true, false, null);
+    }
+
+    private PamResponse send(PamRequest request, int readTimeoutMillis, boolean probe, boolean fingerprint,
+            PamResponse previous) throws Exception {
+        PamTrace trace = PamTrace.start(request.getSoapAction(), domainUrl);
+        long start = System.nanoTime();
+        metrics.onCallStarted();
+        try {
+            try {
+                if (!probe) {
+                    acquire(readTimeoutMillis);
+                }
+            } catch (Exception e) {
+                health.onInconclusive();
+                metrics.onError();
+                trace.end("error");
+                throw e;
+            }
+            long admitted = metrics.since(PamMetrics.Phase.QUEUE, start);
+            trace.event("queue");
+            readTimeoutMillis = (int) Math.max(1, readTimeoutMillis - (admitted - start) / 1000000);
+            long latency = -1;
+            boolean overloaded = false;
+            try {
+                PamResponse response;
+                try {
+                    response = exchange(request, readTimeoutMillis, trace, fingerprint, previous);
+                } catch (PamConnectException e) {
+                    overloaded = true;
+                    health.onConnectFailure();
+                    metrics.onConnectFailure();
+                    trace.end("connect failure");
+                    throw e;
+                } catch (OverloadException e) {
+                    overloaded = true;
+                    health.onInconclusive();
+                    metrics.onError();
+                    trace.end("overloaded");
+                    throw e;
+                } catch (Exception e) {
+                    health.onInconclusive();
+                    metrics.onError();
+                    trace.end("error");
+                    throw e;
+                }
+                latency = System.nanoTime() - admitted;
+                health.onSuccess(response);
+                health.recordLatency(latency);
+                trace.roid(response.getInstanceRoid());
+                if (response.hasFault()) {
+                    metrics.onFault();
+                    trace.end("fault");
+                    if (!probe) {
+                        throw new Exception("SOAP Fault Received: " + response.getFaultString());
+                    }
+                } else {
+                    trace.end("ok");
+                }
+                return response;
+            } finally {
+                if (!probe) {
+                    admission.release(latency, overloaded);
+                }
+            }
+        } finally {
+            metrics.since(PamMetrics.Phase.CALL, start);
+            metrics.onCallEnded();
+        }
+    }
+
+    private void acquire(int timeoutMillis) throws Exception {
+        try {
+            if (!admission.acquire(timeoutMillis)) {
+                throw new Exception("SOAP Call Exception: no connection to [" + domainUrl + "] became available within "
+                        + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception("SOAP Call Exception: interrupted while waiting for a connection to [" + domainUrl + "]");
+        }
+    }
+
+    private PamResponse exchange(PamRequest request, int readTimeoutMillis, PamTrace trace, boolean fingerprint,
+            PamResponse previous) throws Exception {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) soapUrl.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+        connection.setRequestProperty("SOAPAction", request.getSoapAction());
+        if (ACCEPT_COMPRESSION) {
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+        boolean compress = COMPRESS_REQUESTS && (request.getLength() < 0 || request.getLength() >= COMPRESS_MIN_BYTES);
+        if (compress) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setChunkedStreamingMode(8192);
+        } else if (request.getLength() >= 0) {
+            connection.setFixedLengthStreamingMode(request.getLength());
+        } else {
+            connection.setChunkedStreamingMode(8192);
+        }
+
+        CountingOutputStream wireOut;
+        try {
+            wireOut = new CountingOutputStream(connection.getOutputStream());
+        } catch (IOException e) {
+            throw connectFailure(e);
+        }
+        start = metrics.since(PamMetrics.Phase.CONNECT, start);
+        trace.event("connect");
+        CountingOutputStream out = compress ? new CountingOutputStream(new GZIPOutputStream(wireOut, 8192)) : wireOut;
+        InputStream in = null;
+        try {
+            try {
+                request.writeTo(out);
+            } finally {
+                out.close();
+            }
+            start = metrics.since(PamMetrics.Phase.SEND, start);
+            trace.event("send");
+            int status = connection.getResponseCode();
+            start = metrics.since(PamMetrics.Phase.SERVER, start);
+            trace.event("server");
+            in = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+            if (status == HttpURLConnection.HTTP_UNAVAILABLE || status == HTTP_TOO_MANY_REQUESTS) {
+                throw new OverloadException("SOAP Call Exception: HTTP " + status + " " + connection.getResponseMessage());
+            }
+            if (in == null) {
+                throw new Exception("SOAP Call Exception: HTTP " + status + " " + connection.getResponseMessage());
+            }
+            String charset = charset(connection.getContentType());
+            CountingInputStream wireIn = new CountingInputStream(in);
+            String encoding = connection.getContentEncoding();
+            CountingInputStream body = encoding != null && !"identity".equalsIgnoreCase(encoding.trim())
+                    ? new CountingInputStream(decompress(wireIn, encoding.trim()))
+                    : wireIn;
+            int contentLength = body == wireIn ? connection.getContentLength() : -1;
+            PamResponse response = fingerprint
+                    ? parseIfChanged(body, charset, contentLength, request.getDatasetFilter(), previous)
+                    : PamResponseParser.parse(body, charset, request.getDatasetFilter());
+            metrics.since(PamMetrics.Phase.PARSE, start);
+            metrics.recordPayload(request.getSoapAction(), out.getCount(), wireOut.getCount(), body.getCount(), wireIn.getCount());
+            trace.event(response == previous ? "unchanged" : "parse");
+            return response;
+        } catch (XMLStreamException e) {
+            throw new Exception("SOAP Call Exception: " + e.getMessage());
+        } catch (IOException e) {
+            if (isConnectFailure(e)) {
+                throw connectFailure(e);
+            }
+            if (in == null) {
+                in = connection.getErrorStream();
+            }
+            if (e instanceof SocketTimeoutException) {
+                throw new OverloadException("SOAP Call Exception: " + e.getMessage());
+            }
+            throw new Exception("SOAP Call Exception: " + e.getMessage());
+        } finally {
+            release(in);
+        }
+    }
+
+    /**
+     * Read a body of up to {@link #FINGERPRINT_MAX_BYTES} and digest it, returning previous if
+     * its digest is the same and decoding the bytes otherwise; a larger body is decoded as it
+     * streams in, without a fingerprint
+     */
+    private PamResponse parseIfChanged(InputStream in, String charset, int contentLength, PamDatasetFilter filter,
+            PamResponse previous) throws Exception {
+        byte[] body = new byte[contentLength >= 0 ? Math.min(contentLength, FINGERPRINT_MAX_BYTES) + 1 : 8192];
+        int length = 0;
+        int count;
+        while (length <= FINGERPRINT_MAX_BYTES && (count = in.read(body, length, body.length - length)) >= 0) {
+            length += count;
+            if (length == body.length && length <= FINGERPRINT_MAX_BYTES) {
+                body = Arrays.copyOf(body, Math.min(body.length * 2, FINGERPRINT_MAX_BYTES + 1));
+            }
+        }
+        if (length > FINGERPRINT_MAX_BYTES) {
+            return PamResponseParser.parse(new SequenceInputStream(new ByteArrayInputStream(body, 0, length), in), charset, filter);
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        if (charset != null) {
+            digest.update(charset.getBytes(UTF_8));
+        }
+        digest.update(body, 0, length);
+        byte[] fingerprint = digest.digest();
+        if (previous != null && previous.getFingerprint() != null && MessageDigest.isEqual(fingerprint, previous.getFingerprint())) {
+            metrics.onUnchanged();
+            return previous;
+        }
+        PamResponse response = PamResponseParser.parse(new ByteArrayInputStream(body, 0, length), charset, filter);
+        response.setFingerprint(fingerprint);
+        return response;
+    }
+
+    /**
+     * Decode a gzip or deflate response body as it is read. A deflate body should be zlib
+     * wrapped, but some servers send raw deflate data; that is told apart by its missing
+     * zlib header.
+     */
+    private static InputStream decompress(InputStream in, String encoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in, 8192);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            PushbackInputStream peek = new PushbackInputStream(in, 2);
+            byte[] header = new byte[2];
+            int length = 0;
+            int count;
+            while (length < header.length && (count = peek.read(header, length, header.length - length)) >= 0) {
+                length += count;
+            }
+            peek.unread(header, 0, length);
+            boolean zlib = length == header.length && isZlibHeader(header[0] & 0xFF, header[1] & 0xFF);
+            return new InflaterInputStream(peek, new Inflater(!zlib), 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+        throw new IOException("Unsupported Content-Encoding " + encoding);
+    }
+
+    /** True if cmf and flg start a zlib stream: deflate method and a header checksum that divides by 31 */
+    private static boolean isZlibHeader(int cmf, int flg) {
+        return (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /** Drain and close the body so the socket goes back to the keep-alive cache */
+    private static void release(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } catch (IOException e) {
+            // socket will simply not be reused
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /** Charset parameter of a Content-Type header, or null to let the parser use the XML prolog */
+    static String charset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int index = contentType.toLowerCase().indexOf("charset=");
+        if (index < 0) {
+            return null;
+        }
+        String charset = contentType.substring(index + "charset=".length());
+        int end = charset.indexOf(';');
+        if (end >= 0) {
+            charset = charset.substring(0, end);
+        }
+        charset = charset.trim();
+        if (charset.length() > 1 && charset.charAt(0) == '"') {
+            charset = charset.substring(1, charset.length() - 1);
+        }
+        return charset.length() > 0 ? charset : null;
+    }
+
+    private static boolean isConnectFailure(IOException e) {
+        return e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException;
+    }
+
+    private Exception connectFailure(IOException e) {
+        if (isConnectFailure(e) || e instanceof SocketTimeoutException) {
+            return new PamConnectException("Unable to connect to [" + domainUrl + "]. Please verify host and port.");
+        }
+        return new Exception("SOAP Call Exception: " + e.getMessage());
+    }
+
+    /** The server timed out or asked for fewer calls, HTTP 503 or 429: a sign of overload */
+    private static final class OverloadException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        OverloadException(String message) {
+            super(message);
+        }
+    }
+
+    /** Counts the bytes written through it */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /** Counts the bytes read through it */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.nolio.actions.pam;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One outstanding wait for a PAM process instance to reach a terminal state.
+ * <p>
+ * Owned by {@link PamWaitScheduler}; the waiting action only parks on {@link #await()}.
+ * The wait completes normally when the instance ends or the timeout expires, and
+ * exceptionally when a status call fails.
+ * <p>
+ * Each change of flow-state seen by a poll, e.g. Queued, Running, Completed, is logged and
+ * kept with the time it was seen, for {@link #getTransitions()}.
+ * <p>
+ * The deadline and poll times are kept in {@link System#nanoTime()}, as are the now
+ * arguments, so that a step of the wall clock neither ends a wait early nor holds it past
+ * its timeout; the wall clock only dates the start, for the journal, and the transitions.
+ */
+final class PamWait {
+
+    static final long CONFIRM_MILLIS = Long.getLong("pam.callback.confirmMillis", 30000L);
+    static final long CONFIRM_POLL_MILLIS = 500;
+
+    private static final Logger log = Logger.getLogger(PamWait.class);
+
+    private final String domainUrl;
+    private final String instanceRoid;
+    private final PamRequest request;
+    private final PamPollingPolicy policy;
+    private final long startedAt;
+    private final long startedNanos;
+    private final long deadline;
+    private final long deadlineMillis;
+    private volatile String journalId;
+    private final CompletableFuture<PamWait> completion = new CompletableFuture<PamWait>();
+    private final PamMetrics metrics;
+    private final PamTrace trace;
+    private final List<Transition> transitions = new CopyOnWriteArrayList<Transition>();
+
+    private volatile long nextPollAt;
+    private volatile boolean inFlight;
+    private volatile PamResponse lastResponse;
+    private volatile boolean ended;
+    private volatile int pollCount;
+    private volatile boolean seenRunning;
+    private volatile long idleSince;
+    private volatile long expeditedUntil;
+
+    PamWait(String domainUrl, String instanceRoid, PamRequest request, PamPollingPolicy policy, long timeoutMillis, long now) {
+        this.domainUrl = domainUrl;
+        this.instanceRoid = instanceRoid;
+        this.request = request;
+        this.policy = policy;
+        this.startedAt = System.currentTimeMillis();
+        this.startedNanos = now;
+        this.deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.deadlineMillis = startedAt + timeoutMillis;
+        this.nextPollAt = now + TimeUnit.MILLISECONDS.toNanos(Math.min(policy.firstDelay(), timeoutMillis));
+        this.idleSince = now;
+        this.metrics = PamMetrics.forDomain(domainUrl);
+        this.trace = PamTrace.start("Wait", domainUrl, instanceRoid);
+    }
+
+    /**
+     * Resume a wait recovered from the journal, keeping its start and back-off; its deadline
+     * comes from the timeout of the new run, and it polls on the next tick
+     */
+    PamWait(PamWaitJournal.Entry recovered, PamRequest request, PamPollingPolicy policy, long timeoutMillis, long now) {
+        this.domainUrl = recovered.domainUrl;
+        this.instanceRoid = recovered.instanceRoid;
+        this.request = request;
+        this.policy = policy;
+        long wallNow = System.currentTimeMillis();
+        this.startedAt = recovered.startedAt;
+        this.startedNanos = now - TimeUnit.MILLISECONDS.toNanos(Math.max(0, wallNow - recovered.startedAt));
+        this.deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.deadlineMillis = wallNow + timeoutMillis;
+        this.journalId = recovered.id;
+        this.nextPollAt = now;
+        this.idleSince = now;
+        this.pollCount = recovered.pollCount;
+        if (recovered.flowState.length() > 0) {
+            PamResponse response = new PamResponse();
+            response.setInstanceRoid(instanceRoid);
+            response.setFlowState(recovered.flowState);
+            this.lastResponse = response;
+            this.seenRunning = !isTerminal(recovered.flowState);
+        }
+        this.metrics = PamMetrics.forDomain(domainUrl);
+        this.trace = PamTrace.start("Wait", domainUrl, instanceRoid).event("resumed");
+    }
+
+    /** A flow-state first seen by a poll at a given time */
+    static final class Transition {
+        final String flowState;
+        final long seenAt;
+
+        Transition(String flowState, long seenAt) {
+            this.flowState = flowState;
+            this.seenAt = seenAt;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(seenAt)) + " " + flowState;
+        }
+    }
+
+    /** Whether a PAM flow-state will never change again */
+    static boolean isTerminal(String flowState) {
+        return "Completed".equals(flowState) || "Failed".equals(flowState) || "Aborted".equals(flowState);
+    }
+
+    String getDomainUrl() {
+        return domainUrl;
+    }
+
+    String getInstanceRoid() {
+        return instanceRoid;
+    }
+
+    PamRequest getRequest() {
+        return request;
+    }
+
+    PamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Wall-clock time the wait started, in milliseconds */
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    /** Nanoseconds elapsed since the wait started, including the time before a resume */
+    long getElapsedNanos(long now) {
+        return now - startedNanos;
+    }
+
+    /** Wall-clock deadline, in milliseconds, for the journal */
+    long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /** Id of the journal entry of this wait, or null if it is not journaled */
+    String getJournalId() {
+        return journalId;
+    }
+
+    void setJournalId(String journalId) {
+        this.journalId = journalId;
+    }
+
+    /** Last decoded status response, or null if no poll has succeeded yet */
+    PamResponse getLastResponse() {
+        return lastResponse;
+    }
+
+    String getInstanceStatus() {
+        PamResponse response = lastResponse;
+        return response != null ? response.getFlowState() : "";
+    }
+
+    /** Whether the instance reached a terminal state before the timeout */
+    boolean isEnded() {
+        return ended;
+    }
+
+    /** The flow-states seen by this wait, oldest first */
+    List<Transition> getTransitions() {
+        return transitions;
+    }
+
+    int getPollCount() {
+        return pollCount;
+    }
+
+    boolean isDone() {
+        return completion.isDone();
+    }
+
+    /** Block until the instance ends, the wait times out, or a status call fails */
+    PamWait await() throws Exception {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } catch (CancellationException e) {
+            throw new Exception("Wait for Process Instance [" + instanceRoid + "] on [" + domainUrl + "] was cancelled");
+        }
+    }
+
+    /** Future completed by the scheduler, for callers that compose waits rather than block on one */
+    CompletableFuture<PamWait> whenDone() {
+        return completion;
+    }
+
+    void cancel() {
+        if (completion.cancel(false)) {
+            trace.end("cancelled");
+        }
+    }
+
+    boolean isDue(long now) {
+        return !inFlight && now - nextPollAt >= 0;
+    }
+
+    /**
+     * A completion callback named this instance: poll at once, then every
+     * {@link #CONFIRM_POLL_MILLIS} for up to {@link #CONFIRM_MILLIS}, since the
+     * notifying step may still be running when the callback arrives
+     */
+    void expedite(long now) {
+        expeditedUntil = now + TimeUnit.MILLISECONDS.toNanos(CONFIRM_MILLIS);
+        nextPollAt = now;
+        trace.event("callback");
+    }
+
+    void setInFlight(boolean inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /** Mark a status poll as started and return how long the wait slept before it, in nanoseconds */
+    long startPoll(long now) {
+        inFlight = true;
+        return now - idleSince;
+    }
+
+    /** Record a status response; returns true once the wait is complete */
+    boolean onResponse(PamResponse response, long now) {
+        PamResponse previous = lastResponse;
+        if (previous == null || !previous.getFlowState().equals(response.getFlowState())) {
+            trace.event(response.getFlowState());
+            transitions.add(new Transition(response.getFlowState(), System.currentTimeMillis()));
+            if (log.isInfoEnabled()) {
+                log.info("Process Instance [" + instanceRoid + "] on [" + domainUrl + "] is " + response.getFlowState()
+                        + (previous != null ? " (was " + previous.getFlowState() + ")" : "") + " after "
+                        + TimeUnit.NANOSECONDS.toMillis(now - startedNanos) + " ms");
+            }
+        }
+        lastResponse = response;
+        pollCount++;
+        idleSince = now;
+        if (isTerminal(response.getFlowState())) {
+            ended = true;
+            if (seenRunning) {
+                policy.recordDuration(TimeUnit.NANOSECONDS.toMillis(now - startedNanos));
+            }
+            if (completion.complete(this)) {
+                trace.end(response.getFlowState());
+            }
+        } else if (now - deadline >= 0) {
+            if (completion.complete(this)) {
+                trace.end("timed out");
+            }
+        } else {
+            seenRunning = true;
+            long delay = TimeUnit.MILLISECONDS.toNanos(policy.nextDelay(pollCount));
+            if (now - expeditedUntil < 0) {
+                delay = Math.min(delay, TimeUnit.MILLISECONDS.toNanos(CONFIRM_POLL_MILLIS));
+            }
+            nextPollAt = deadline - now < delay ? deadline : now + delay;
+        }
+        inFlight = false;
+        return completion.isDone();
+    }
+
+    void onFailure(Exception e) {
+        inFlight = false;
+        if (completion.completeExceptionally(e)) {
+            trace.end("error");
+        }
+    }
+}
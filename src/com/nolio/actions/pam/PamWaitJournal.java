@@ -0,0 +1,395 @@
+package com.nolio.actions.pam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only file journal of the outstanding waits of {@link PamWaitScheduler}, so that
+ * a wait survives an agent restart.
+ * <p>
+ * For each wait it records an id of its own, the domain URL, ROID, start time, deadline,
+ * poll count and last flow-state seen; credentials are never written. Concurrent waits
+ * for the same instance have entries of their own. A wait that is cancelled rather than
+ * finished (its action was interrupted, e.g. by an agent shutdown) stays in the journal
+ * as an orphan; one that ended, timed out or failed is forgotten. Since credentials are
+ * not kept, an orphan is not polled on its own after a restart: when the step runs
+ * again and waits for the same ROID on the same domain, the wait takes over the orphan:
+ * it keeps its start time, poll count and polling back-off, gets its deadline from the
+ * Timeout of the new run and polls on the next scheduler tick, together with the other
+ * waits being resumed for that server. Orphans are dropped once past their deadline or
+ * after {@code pam.wait.journal.orphanMillis} (default 86400000).
+ * <p>
+ * Records are kept in memory and written by the scheduler timer every
+ * {@code pam.wait.journal.flushMillis} (default 1000), the polls of a wait in that time
+ * coalesced into one line, so that pollers never wait on the file; a wait started or
+ * polled less than that before a crash resumes from its previous record, or not at all.
+ * Lines are flushed to the OS but not synced, which is enough to survive a restart of
+ * the agent process.
+ * <p>
+ * The file is {@code pam.wait.journalFile}; empty disables the journal. By default it is
+ * in the temp directory and named after the working directory of the agent, so that the
+ * agents of a host keep journals of their own and a restarted agent finds its own again.
+ * Writers lock the file {@code <journal>.lock} around every append and compaction, so
+ * JVMs that are configured with the same journal do not lose each other's lines. The
+ * journal is compacted when it is opened and whenever it has grown well past the number
+ * of waits it holds.
+ */
+final class PamWaitJournal {
+
+    static final String JOURNAL_FILE = System.getProperty("pam.wait.journalFile", defaultFile().getPath());
+    static final long ORPHAN_MILLIS = Long.getLong("pam.wait.journal.orphanMillis", 86400000L);
+    static final long FLUSH_MILLIS = Long.getLong("pam.wait.journal.flushMillis", 1000L);
+
+    private static final Logger log = Logger.getLogger(PamWaitJournal.class);
+    private static final String STARTED = "S";
+    private static final String POLLED = "P";
+    private static final String ENDED = "E";
+
+    /** What the journal knows of one wait */
+    static final class Entry {
+        final String id;
+        final String domainUrl;
+        final String instanceRoid;
+        final long startedAt;
+        long deadline;
+        int pollCount;
+        String flowState = "";
+        boolean attached;
+        long detachedAt;
+
+        Entry(String id, String domainUrl, String instanceRoid, long startedAt, long deadline) {
+            this.id = id;
+            this.domainUrl = domainUrl;
+            this.instanceRoid = instanceRoid;
+            this.startedAt = startedAt;
+            this.deadline = deadline;
+        }
+    }
+
+    private final File file;
+    private final File lockFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private final StringBuilder pending = new StringBuilder();
+    private final Set<Entry> polled = new LinkedHashSet<Entry>();
+    private volatile boolean disabled;
+    private int lines;
+
+    private PamWaitJournal(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+    }
+
+    /** The journal of this agent, in the temp directory and named after the agent's working directory */
+    private static File defaultFile() {
+        String agent = new File(System.getProperty("user.dir", ".")).getAbsolutePath();
+        return new File(System.getProperty("java.io.tmpdir"), "pam-wait-journal-" + Integer.toHexString(agent.hashCode()) + ".log");
+    }
+
+    /** Open the configured journal, or return null if it is disabled or cannot be used */
+    static PamWaitJournal open() {
+        if (JOURNAL_FILE.trim().length() == 0) {
+            return null;
+        }
+        PamWaitJournal journal = new PamWaitJournal(new File(JOURNAL_FILE.trim()).getAbsoluteFile());
+        try {
+            File parent = journal.file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create directory [" + parent + "]");
+            }
+            long now = System.currentTimeMillis();
+            FileLock lock = journal.lock();
+            try {
+                Map<String, Entry> onDisk = journal.load(now);
+                synchronized (journal) {
+                    journal.entries.putAll(onDisk);
+                }
+                journal.compact(onDisk, now);
+            } finally {
+                release(lock);
+            }
+            if (journal.size() > 0) {
+                log.info("PAM wait journal [" + journal.file + "] holds " + journal.size()
+                        + " outstanding wait(s), resumed when their steps run again");
+            }
+            return journal;
+        } catch (IOException e) {
+            log.warn("PAM wait journal [" + journal.file + "] is disabled: " + e);
+            return null;
+        }
+    }
+
+    /** Take over the most recent orphaned entry of a wait for the same instance, if there is one */
+    synchronized Entry recover(String domainUrl, String instanceRoid) {
+        long now = System.currentTimeMillis();
+        Entry recovered = null;
+        for (Entry entry : entries.values()) {
+            if (!entry.attached && entry.deadline > now && entry.domainUrl.equals(domainUrl)
+                    && entry.instanceRoid.equals(instanceRoid) && (recovered == null || entry.startedAt > recovered.startedAt)) {
+                recovered = entry;
+            }
+        }
+        if (recovered != null) {
+            recovered.attached = true;
+        }
+        return recovered;
+    }
+
+    /** Record a new wait, or the new deadline of a resumed one */
+    synchronized void started(PamWait wait) {
+        Entry entry = entryOf(wait);
+        if (entry == null) {
+            entry = new Entry(UUID.randomUUID().toString(), wait.getDomainUrl(), wait.getInstanceRoid(), wait.getStartedAt(),
+                    wait.getDeadlineMillis());
+            entries.put(entry.id, entry);
+            wait.setJournalId(entry.id);
+            queue(STARTED, entry, Long.toString(entry.startedAt), Long.toString(entry.deadline));
+        } else if (entry.deadline != wait.getDeadlineMillis()) {
+            entry.deadline = wait.getDeadlineMillis();
+            queue(STARTED, entry, Long.toString(entry.startedAt), Long.toString(entry.deadline));
+            if (entry.pollCount > 0) {
+                queue(POLLED, entry, Integer.toString(entry.pollCount), entry.flowState);
+            }
+        }
+        entry.attached = true;
+    }
+
+    synchronized void polled(PamWait wait) {
+        Entry entry = entryOf(wait);
+        if (entry != null) {
+            entry.pollCount = wait.getPollCount();
+            entry.flowState = wait.getInstanceStatus();
+            polled.add(entry);
+        }
+    }
+
+    /** The wait was cancelled; keep it for the next attempt to resume */
+    synchronized void detached(PamWait wait) {
+        Entry entry = entryOf(wait);
+        if (entry != null) {
+            entry.attached = false;
+            entry.detachedAt = System.currentTimeMillis();
+        }
+    }
+
+    /** The instance ended, the wait timed out or its status poll failed; forget it */
+    synchronized void ended(PamWait wait) {
+        Entry entry = wait.getJournalId() != null ? entries.remove(wait.getJournalId()) : null;
+        if (entry != null) {
+            polled.remove(entry);
+            queue(ENDED, entry);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Write the records kept since the last flush; called by the scheduler timer */
+    void flush() {
+        String text;
+        int count = 0;
+        synchronized (this) {
+            for (Entry entry : polled) {
+                queue(POLLED, entry, Integer.toString(entry.pollCount), entry.flowState);
+            }
+            polled.clear();
+            if (pending.length() == 0) {
+                return;
+            }
+            text = pending.toString();
+            pending.setLength(0);
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        try {
+            FileLock lock = lock();
+            try {
+                Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+                try {
+                    out.write(text);
+                } finally {
+                    out.close();
+                }
+                lines += count;
+                if (lines > 1000 + 4 * size()) {
+                    long now = System.currentTimeMillis();
+                    compact(load(now), now);
+                }
+            } finally {
+                release(lock);
+            }
+        } catch (IOException e) {
+            log.warn("PAM wait journal [" + file + "] is disabled: " + e);
+            disabled = true;
+        }
+    }
+
+    private Entry entryOf(PamWait wait) {
+        return wait.getJournalId() != null ? entries.get(wait.getJournalId()) : null;
+    }
+
+    private void queue(String type, Entry entry, String... fields) {
+        if (!disabled) {
+            pending.append(line(type, entry, fields));
+        }
+    }
+
+    /** Lock the journal against the other JVMs that write to it; released by {@link #release(FileLock)} */
+    private FileLock lock() throws IOException {
+        RandomAccessFile channel = new RandomAccessFile(lockFile, "rw");
+        try {
+            return channel.getChannel().lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (OverlappingFileLockException e) {
+            channel.close();
+            throw new IOException("[" + lockFile + "] is already locked by another journal in this JVM");
+        }
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /** Read the entries of the journal as written so far by every JVM; a torn or unreadable line is skipped */
+    private Map<String, Entry> load(long now) throws IOException {
+        Map<String, Entry> loaded = new LinkedHashMap<String, Entry>();
+        if (!file.exists()) {
+            return loaded;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    String id = decode(fields[1]);
+                    if (STARTED.equals(fields[0]) && fields.length >= 6) {
+                        Entry entry = new Entry(id, decode(fields[2]), decode(fields[3]), Long.parseLong(fields[4]),
+                                Long.parseLong(fields[5]));
+                        Entry previous = loaded.get(id);
+                        if (previous != null) {
+                            entry.pollCount = previous.pollCount;
+                            entry.flowState = previous.flowState;
+                        }
+                        entry.detachedAt = now;
+                        loaded.put(id, entry);
+                    } else if (POLLED.equals(fields[0]) && fields.length >= 5 && loaded.containsKey(id)) {
+                        Entry entry = loaded.get(id);
+                        entry.pollCount = Integer.parseInt(fields[4]);
+                        entry.flowState = fields.length >= 6 ? decode(fields[5]) : "";
+                    } else if (ENDED.equals(fields[0])) {
+                        loaded.remove(id);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // torn write
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * Rewrite the journal with one or two lines per wait still outstanding, holding the lock.
+     * onDisk is what the file holds, including the waits of other JVMs, which are kept until
+     * their deadline; orphans of this JVM are also dropped after {@link #ORPHAN_MILLIS}.
+     */
+    private void compact(Map<String, Entry> onDisk, long now) throws IOException {
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (!entry.attached && (entry.deadline <= now || now - entry.detachedAt > ORPHAN_MILLIS)) {
+                    iterator.remove();
+                    onDisk.remove(entry.id);
+                }
+            }
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8");
+        int written = 0;
+        try {
+            for (Entry entry : onDisk.values()) {
+                if (entry.deadline <= now && !isOwn(entry)) {
+                    continue;
+                }
+                writer.write(line(STARTED, entry, Long.toString(entry.startedAt), Long.toString(entry.deadline)));
+                written++;
+                if (entry.pollCount > 0) {
+                    writer.write(line(POLLED, entry, Integer.toString(entry.pollCount), entry.flowState));
+                    written++;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            throw new IOException("Unable to replace [" + file + "]");
+        }
+        lines = written;
+    }
+
+    private synchronized boolean isOwn(Entry entry) {
+        return entries.containsKey(entry.id);
+    }
+
+    private static String line(String type, Entry entry, String... fields) {
+        StringBuilder line = new StringBuilder(96);
+        line.append(type).append('\t').append(encode(entry.id))
+                .append('\t').append(encode(entry.domainUrl))
+                .append('\t').append(encode(entry.instanceRoid));
+        for (String field : fields) {
+            line.append('\t').append(encode(field));
+        }
+        return line.append('\n').toString();
+    }
+
+    private static String encode(String field) {
+        try {
+            return URLEncoder.encode(field, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String field) {
+        try {
+            return URLDecoder.decode(field, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
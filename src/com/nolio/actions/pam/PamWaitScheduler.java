@@ -0,0 +1,383 @@
+package com.nolio.actions.pam;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Agent-wide scheduler that owns every outstanding {@link PamWait}.
+ * <p>
+ * A single timer thread ticks every {@code pam.wait.tickMillis} (default 250) and hands
+ * the waits that are due to a small pool of {@code pam.wait.pollerThreads} (default 4)
+ * poller threads, so the number of threads doing PAM status polling stays flat no
+ * matter how many waits are in flight.
+ * <p>
+ * On each tick the due waits are coalesced per server: waits that would send an
+ * identical getProcessStatus request (same domain, ROID and credentials) share one
+ * round-trip, and the distinct requests for a server queue up behind at most
+ * {@code pam.wait.maxInFlightPerServer} (default 4) calls in flight on it, the results being
+ * fanned back out to every wait in the group. That limit is kept below the number of
+ * pollers, so a server whose calls hang until the read timeout leaves pollers free for
+ * the other servers. Polls go through {@link PamStatusCache},
+ * so they always fetch a fresh running status but complete at once for an instance
+ * whose terminal state is already cached, and publish what they see to other actions.
+ * A poll that gets back the same bytes as the wait's previous poll is not decoded again.
+ * <p>
+ * The scheduler records in the {@link PamMetrics} of each domain the sleep before each
+ * poll, the length of each wait and the counts of ended and timed out waits and of the
+ * polls they took, so the effect of the polling policy can be judged from polls per
+ * completed wait.
+ * <p>
+ * Outstanding waits are kept in a {@link PamWaitJournal}, written by the timer, so that a
+ * wait for the same instance submitted after an agent restart resumes where the previous
+ * one left off. Waits are not resumed before their steps run again, since the journal
+ * holds no credentials to poll with.
+ * <p>
+ * A notification to the {@link PamCallbackListener} expedites the waits for its ROID, which
+ * then poll at once instead of at their next scheduled time.
+ * <p>
+ * The timer also deletes the spill files of {@link PamDataset}s that are no longer used.
+ */
+final class PamWaitScheduler {
+
+    static final long TICK_MILLIS = Long.getLong("pam.wait.tickMillis", 250L);
+    static final int POLLER_THREADS = Integer.getInteger("pam.wait.pollerThreads", 4);
+    static final int MAX_IN_FLIGHT_PER_SERVER = Integer.getInteger("pam.wait.maxInFlightPerServer", 4);
+
+    private static final Logger log = Logger.getLogger(PamWaitScheduler.class);
+    private static volatile PamWaitScheduler started;
+
+    private final PamWaitJournal journal = PamWaitJournal.open();
+    private final Set<PamWait> waits = Collections.newSetFromMap(new ConcurrentHashMap<PamWait, Boolean>());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("PAM-Wait-Timer"));
+    private final ExecutorService pollers = Executors.newFixedThreadPool(Math.max(1, POLLER_THREADS), daemonThreads("PAM-Wait-Poller"));
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    private PamWaitScheduler() {
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (journal != null) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    journal.flush();
+                }
+            }, PamWaitJournal.FLUSH_MILLIS, Math.max(1, PamWaitJournal.FLUSH_MILLIS), TimeUnit.MILLISECONDS);
+        }
+        if (PamDataset.RECLAIM_MILLIS > 0) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    PamDataset.reclaimSpillFiles();
+                }
+            }, PamDataset.RECLAIM_MILLIS, PamDataset.RECLAIM_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Holds the scheduler, so that its threads start on first use rather than with the class */
+    private static final class Holder {
+        static final PamWaitScheduler INSTANCE = new PamWaitScheduler();
+    }
+
+    /** The scheduler, starting it on first use */
+    static PamWaitScheduler getInstance() {
+        PamWaitScheduler scheduler = Holder.INSTANCE;
+        started = scheduler;
+        return scheduler;
+    }
+
+    /** The scheduler if it has been started, or null; never starts it */
+    static PamWaitScheduler getIfStarted() {
+        return started;
+    }
+
+    /** Register a wait; the first status poll happens on the next tick */
+    PamWait submit(String domainUrl, String instanceRoid, PamRequest request, PamPollingPolicy policy, long timeoutMillis) {
+        String domain = PamTransport.normalize(domainUrl);
+        long now = System.nanoTime();
+        PamWaitJournal.Entry recovered = journal != null ? journal.recover(domain, instanceRoid) : null;
+        final PamWait wait = recovered != null
+                ? new PamWait(recovered, request, policy, timeoutMillis, now)
+                : new PamWait(domain, instanceRoid, request, policy, timeoutMillis, now);
+        if (recovered != null) {
+            log.info("Resuming wait for Process Instance [" + instanceRoid + "] on [" + domain + "] started at "
+                    + new Date(recovered.startedAt) + ", last status was: " + wait.getInstanceStatus());
+        }
+        if (journal != null) {
+            journal.started(wait);
+        }
+        waits.add(wait);
+        wait.whenDone().whenComplete(new BiConsumer<PamWait, Throwable>() {
+            @Override
+            public void accept(PamWait done, Throwable failure) {
+                if (failure instanceof CancellationException) {
+                    cancelled(wait);
+                }
+            }
+        });
+        return wait;
+    }
+
+    /**
+     * Make the waits for an instance poll at once, on a completion callback; domainUrl may be
+     * null to match the ROID on any domain. Returns the number of waits woken.
+     */
+    int expedite(String domainUrl, String instanceRoid) {
+        String domain = domainUrl != null && domainUrl.length() > 0 ? PamTransport.normalize(domainUrl) : null;
+        long now = System.nanoTime();
+        int woken = 0;
+        for (PamWait wait : waits) {
+            if (instanceRoid.equals(wait.getInstanceRoid()) && (domain == null || domain.equals(wait.getDomainUrl()))
+                    && !wait.isDone()) {
+                wait.expedite(now);
+                woken++;
+            }
+        }
+        if (woken > 0) {
+            try {
+                timer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        tick();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the next scheduled tick picks them up
+            }
+        }
+        return woken;
+    }
+
+    /** Number of waits currently outstanding */
+    int getWaitCount() {
+        return waits.size();
+    }
+
+    /** Number of waits currently outstanding on one domain */
+    int getWaitCount(String domainUrl) {
+        String key = PamTransport.normalize(domainUrl);
+        int count = 0;
+        for (PamWait wait : waits) {
+            if (key.equals(wait.getDomainUrl()) && !wait.isDone()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        Map<String, Map<PamRequest, List<PamWait>>> due = new HashMap<String, Map<PamRequest, List<PamWait>>>();
+        Iterator<PamWait> iterator = waits.iterator();
+        while (iterator.hasNext()) {
+            PamWait wait = iterator.next();
+            if (wait.isDone()) {
+                iterator.remove();
+                if (journal != null) {
+                    journal.detached(wait);
+                }
+            } else if (wait.isDue(now)) {
+                wait.getMetrics().record(PamMetrics.Phase.POLL_SLEEP, wait.startPoll(now));
+                Map<PamRequest, List<PamWait>> server = due.get(wait.getDomainUrl());
+                if (server == null) {
+                    server = new HashMap<PamRequest, List<PamWait>>();
+                    due.put(wait.getDomainUrl(), server);
+                }
+                List<PamWait> group = server.get(wait.getRequest());
+                if (group == null) {
+                    group = new ArrayList<PamWait>(1);
+                    server.put(wait.getRequest(), group);
+                }
+                group.add(wait);
+            }
+        }
+        for (Map.Entry<String, Map<PamRequest, List<PamWait>>> server : due.entrySet()) {
+            lane(server.getKey()).submit(server.getValue().values());
+        }
+    }
+
+    /**
+     * The status polls due on a single server, drained by at most {@link #maxInFlightPerServer()}
+     * pollers at a time, across ticks, so a server that stops answering cannot hold every poller
+     */
+    private final class Lane implements Runnable {
+
+        private final String domainUrl;
+        private final Queue<List<PamWait>> groups = new ConcurrentLinkedQueue<List<PamWait>>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        Lane(String domainUrl) {
+            this.domainUrl = domainUrl;
+        }
+
+        void submit(Collection<List<PamWait>> due) {
+            groups.addAll(due);
+            int limit = maxInFlightPerServer();
+            if (log.isDebugEnabled()) {
+                log.debug("Polling " + due.size() + " process instance(s) on [" + domainUrl + "] with at most " + limit
+                        + " call(s) in flight, " + running.get() + " running");
+            }
+            start(limit);
+        }
+
+        private void start(int limit) {
+            int wanted = groups.size();
+            while (wanted-- > 0) {
+                int current = running.get();
+                if (current >= limit) {
+                    return;
+                }
+                if (running.compareAndSet(current, current + 1)) {
+                    try {
+                        pollers.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        running.decrementAndGet();
+                        release();
+                        return;
+                    }
+                } else {
+                    wanted++;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<PamWait> group;
+                while ((group = groups.poll()) != null) {
+                    poll(group);
+                }
+            } finally {
+                running.decrementAndGet();
+            }
+            if (!groups.isEmpty()) {
+                // queued while this poller was finishing
+                start(maxInFlightPerServer());
+            }
+        }
+
+        private void release() {
+            List<PamWait> group;
+            while ((group = groups.poll()) != null) {
+                for (PamWait wait : group) {
+                    wait.setInFlight(false);
+                }
+            }
+        }
+    }
+
+    /** Polls in flight per server, kept below the pool size so one server cannot hold every poller */
+    static int maxInFlightPerServer() {
+        return Math.max(1, Math.min(MAX_IN_FLIGHT_PER_SERVER, POLLER_THREADS - 1));
+    }
+
+    private Lane lane(String domainUrl) {
+        Lane lane = lanes.get(domainUrl);
+        if (lane == null) {
+            Lane created = new Lane(domainUrl);
+            lane = lanes.putIfAbsent(domainUrl, created);
+            if (lane == null) {
+                lane = created;
+            }
+        }
+        return lane;
+    }
+
+    private void poll(List<PamWait> group) {
+        PamWait first = group.get(0);
+        try {
+            PamResponse response = PamStatusCache.getInstance().get(first.getDomainUrl(), first.getRequest(), 0, first.getLastResponse());
+            long now = System.nanoTime();
+            for (PamWait wait : group) {
+                if (wait.onResponse(response, now)) {
+                    waits.remove(wait);
+                    completed(wait);
+                } else if (journal != null) {
+                    journal.polled(wait);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Process Instance [" + first.getInstanceRoid() + "] on [" + first.getDomainUrl() + "] is "
+                        + response.getFlowState());
+            }
+        } catch (Exception e) {
+            fail(group, e);
+        } catch (Throwable t) {
+            log.error("Unexpected error polling Process Instance [" + first.getInstanceRoid() + "]", t);
+            fail(group, new Exception(t.toString()));
+        }
+    }
+
+    private void completed(PamWait wait) {
+        recordWait(wait);
+        if (journal != null) {
+            journal.ended(wait);
+        }
+        if (wait.isEnded()) {
+            wait.getMetrics().onWaitEnded(wait.getPollCount());
+        } else {
+            wait.getMetrics().onWaitTimedOut();
+        }
+    }
+
+    /** Drop a cancelled wait at once, so that a rerun of its step can resume it from the journal */
+    private void cancelled(PamWait wait) {
+        if (waits.remove(wait) && journal != null) {
+            journal.detached(wait);
+        }
+    }
+
+    private void fail(List<PamWait> group, Exception e) {
+        for (PamWait wait : group) {
+            wait.onFailure(e);
+            waits.remove(wait);
+            recordWait(wait);
+            if (journal != null) {
+                journal.ended(wait);
+            }
+        }
+    }
+
+    private static void recordWait(PamWait wait) {
+        wait.getMetrics().record(PamMetrics.Phase.WAIT, wait.getElapsedNanos(System.nanoTime()));
+    }
+
+    static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
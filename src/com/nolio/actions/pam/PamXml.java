@@ -0,0 +1,82 @@
+package com.nolio.actions.pam;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.stream.XMLInputFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * XML infrastructure shared by all PAM actions in the agent JVM.
+ * <p>
+ * JAXP factory lookups go through the service loader, which scans the whole agent
+ * classpath, so the StAX input factory is looked up and configured once and then shared;
+ * it is thread-safe once configured, and readers are cheap to create from it.
+ * <p>
+ * Every action class calls {@link #warmUp()} when it is loaded. The first call runs a
+ * canned request and response through {@link PamRequestBuilder} and
+ * {@link PamResponseParser} on a background thread, so that the first real call on a
+ * freshly started agent does not pay for the factory lookup and class loading.
+ */
+final class PamXml {
+
+    private static final Logger log = Logger.getLogger(PamXml.class);
+    private static final AtomicBoolean WARMED_UP = new AtomicBoolean();
+
+    private static final String WARM_UP_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:itp=\"http://www.ca.com/itpam\">"
+            + "<SOAP-ENV:Body><itp:getProcessStatusResponse><itp:flow><itp:ROID>0</itp:ROID>"
+            + "<itp:flow-state>Completed</itp:flow-state><itp:params>"
+            + "<itp:param name=\"name\">value &amp; <![CDATA[text]]></itp:param><itp:param name=\"empty\"/>"
+            + "</itp:params></itp:flow></itp:getProcessStatusResponse></SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    private PamXml() {
+    }
+
+    /** Lazily created, so that the lookup happens on whichever thread needs the factory first */
+    private static final class Holder {
+        static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+    }
+
+    static XMLInputFactory inputFactory() {
+        return Holder.INPUT_FACTORY;
+    }
+
+    /** Warm the shared XML infrastructure up in the background, once per JVM */
+    static void warmUp() {
+        if (!WARMED_UP.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    PamRequestBuilder.getProcessStatus("0", "", "").writeTo(new ByteArrayOutputStream(512));
+                    byte[] response = WARM_UP_RESPONSE.getBytes(Charset.forName("UTF-8"));
+                    PamResponseParser.parse(new ByteArrayInputStream(response), "UTF-8").getDataset().toText();
+                    PamResponseParser.parse(new ByteArrayInputStream(response), null);
+                    if (log.isDebugEnabled()) {
+                        log.debug("PAM XML infrastructure warmed up in " + (System.nanoTime() - start) / 1000000L + " ms");
+                    }
+                } catch (Throwable t) {
+                    log.debug("PAM XML warm-up failed: " + t);
+                }
+            }
+        }, "PAM-Xml-WarmUp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+}
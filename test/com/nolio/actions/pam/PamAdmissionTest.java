@@ -0,0 +1,167 @@
+package com.nolio.actions.pam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Runs with the default settings: adaptive limit starting at pam.transport.maxConnections, no token bucket */
+public class PamAdmissionTest {
+
+    private static final AtomicInteger DOMAINS = new AtomicInteger();
+    private static final long LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    @Test
+    public void admitsUpToTheLimitThenQueues() throws Exception {
+        PamAdmission admission = newAdmission();
+        int limit = admission.getLimit();
+        assertEquals(PamTransport.MAX_CONNECTIONS, limit);
+        for (int i = 0; i < limit; i++) {
+            assertTrue(admission.acquire(0));
+        }
+        assertEquals(limit, admission.getInFlight());
+        assertFalse(admission.acquire(20));
+        assertEquals(0, admission.getQueueLength());
+        assertEquals(limit, admission.getInFlight());
+    }
+
+    @Test
+    public void admitsQueuedCallsInArrivalOrder() throws Exception {
+        final PamAdmission admission = newAdmission();
+        fill(admission);
+        final StringBuffer order = new StringBuffer();
+        Thread first = waiter(admission, order, "1");
+        awaitQueueLength(admission, 1);
+        Thread second = waiter(admission, order, "2");
+        awaitQueueLength(admission, 2);
+
+        admission.release(LATENCY_NANOS, false);
+        first.join(5000);
+        assertEquals("1", order.toString());
+        admission.release(LATENCY_NANOS, false);
+        second.join(5000);
+        assertEquals("12", order.toString());
+        assertEquals(0, admission.getQueueLength());
+    }
+
+    @Test
+    public void halvesTheLimitOnOverloadAtMostOncePerInterval() throws Exception {
+        PamAdmission admission = newAdmission();
+        int limit = admission.getLimit();
+        // the first decrease is allowed 100 ms after creation
+        Thread.sleep(150);
+        assertTrue(admission.acquire(0));
+        assertTrue(admission.acquire(0));
+        admission.release(-1, true);
+        assertEquals(limit / 2, admission.getLimit());
+        admission.release(-1, true);
+        assertEquals(limit / 2, admission.getLimit());
+    }
+
+    @Test
+    public void growsTheLimitBackByOnePerLimitOfAnsweredCalls() throws Exception {
+        PamAdmission admission = newAdmission();
+        int limit = admission.getLimit();
+        Thread.sleep(150);
+        assertTrue(admission.acquire(0));
+        admission.release(-1, true);
+        int lowered = admission.getLimit();
+        assertEquals(limit / 2, lowered);
+        for (int i = 0; i <= lowered; i++) {
+            assertTrue(admission.acquire(0));
+            admission.release(LATENCY_NANOS, false);
+        }
+        assertEquals(lowered + 1, admission.getLimit());
+    }
+
+    @Test
+    public void neverDropsBelowTheMinimum() throws Exception {
+        PamAdmission admission = newAdmission();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(110);
+            assertTrue(admission.acquire(0));
+            admission.release(-1, true);
+        }
+        assertEquals(PamAdmission.MIN_LIMIT, admission.getLimit());
+    }
+
+    @Test
+    public void faultsAndLocalErrorsDoNotChangeTheLimit() throws Exception {
+        PamAdmission admission = newAdmission();
+        int limit = admission.getLimit();
+        Thread.sleep(150);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admission.acquire(0));
+            admission.release(-1, false);
+        }
+        assertEquals(limit, admission.getLimit());
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void interruptedCallLeavesTheQueue() throws Exception {
+        final PamAdmission admission = newAdmission();
+        fill(admission);
+        final AtomicInteger interrupted = new AtomicInteger();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    admission.acquire(60000);
+                    fail();
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            }
+        };
+        thread.start();
+        awaitQueueLength(admission, 1);
+        thread.interrupt();
+        thread.join(5000);
+        assertEquals(1, interrupted.get());
+        assertEquals(0, admission.getQueueLength());
+        assertEquals(admission.getLimit(), admission.getInFlight());
+    }
+
+    private static PamAdmission newAdmission() {
+        return PamAdmission.forDomain("http://admission-test-" + DOMAINS.incrementAndGet() + ":8080/itpam");
+    }
+
+    private static void fill(PamAdmission admission) throws InterruptedException {
+        while (admission.getInFlight() < admission.getLimit()) {
+            assertTrue(admission.acquire(0));
+        }
+    }
+
+    private static Thread waiter(final PamAdmission admission, final StringBuffer order, final String name) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (admission.acquire(60000)) {
+                        order.append(name);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueLength(PamAdmission admission, int length) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (admission.getQueueLength() != length) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Queue length stayed at " + admission.getQueueLength() + ", expected " + length);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
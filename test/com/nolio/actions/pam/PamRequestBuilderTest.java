@@ -0,0 +1,153 @@
+package com.nolio.actions.pam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class PamRequestBuilderTest {
+
+    @Test
+    public void escapesMarkupInTextAndAttributes() throws Exception {
+        String body = body(PamRequestBuilder.executeProcess("/Folder/<Flow>", "user&co", "p\"w", null,
+                new String[] { "a\"b" }, new String[] { "x < y & \"z\"" }, null, false));
+        assertContains(body, "<itp:name>/Folder/&lt;Flow&gt;</itp:name>");
+        assertContains(body, "<itp:user>user&amp;co</itp:user>");
+        assertContains(body, "<itp:password>p\"w</itp:password>");
+        assertContains(body, "<itp:param name=\"a&quot;b\">x &lt; y &amp; \"z\"</itp:param>");
+    }
+
+    @Test
+    public void keepsTabAndLineFeedInTextButNotInAttributes() throws Exception {
+        String body = body(PamRequestBuilder.executeProcess("/Flow", "u", "p", null,
+                new String[] { "a\tb\nc" }, new String[] { "1\t2\n3\r4" }, null, false));
+        assertContains(body, "<itp:param name=\"a&#9;b&#10;c\">1\t2\n3&#13;4</itp:param>");
+    }
+
+    @Test
+    public void splitsNameValueParamsOnTheFirstColon() throws Exception {
+        String body = body(PamRequestBuilder.executeProcess("/Flow", "u", "p",
+                new String[] { "url:http://host:8080/path", "empty:", ":anonymous" }));
+        assertContains(body, "<itp:param name=\"url\">http://host:8080/path</itp:param>");
+        assertContains(body, "<itp:param name=\"empty\"></itp:param>");
+        assertContains(body, "<itp:param name=\"\">anonymous</itp:param>");
+    }
+
+    @Test
+    public void rejectsParamsWithoutAColon() throws Exception {
+        try {
+            PamRequestBuilder.executeProcess("/Flow", "u", "p", new String[] { "novalue" });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertContains(e.getMessage(), "[novalue] is not in the format of name:value");
+        }
+    }
+
+    @Test
+    public void rejectsMismatchedNamesAndValues() throws Exception {
+        try {
+            PamRequestBuilder.executeProcess("/Flow", "u", "p", null, new String[] { "a", "b" }, new String[] { "1" }, null, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Got 2 parameter names but 1 parameter values", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsControlCharactersNamingTheParam() throws Exception {
+        try {
+            PamRequestBuilder.executeProcess("/Flow", "u", "p", new String[] { "bell:ding\u0007" });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Parameter [bell]: control character U+0007 at position 4 cannot be sent in XML", e.getMessage());
+        }
+        try {
+            PamRequestBuilder.executeProcess("/Flow", "u", "p", null, new String[] { "nul" }, new String[] { "\u0000" }, null, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Parameter [nul]: control character U+0000 at position 0 cannot be sent in XML", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsControlCharactersInCredentials() throws Exception {
+        try {
+            PamRequestBuilder.checkServerStatus("user", "pass\u001b");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertContains(e.getMessage(), "U+001B");
+        }
+    }
+
+    @Test
+    public void encodesSupplementaryCharactersAndReplacesUnpairedSurrogates() throws Exception {
+        String body = body(PamRequestBuilder.getProcessStatus("😀-\uD83D-é", "u", "p"));
+        assertContains(body, "<itp:ROID>😀-?-é</itp:ROID>");
+    }
+
+    @Test
+    public void streamsFileParamsEscaped() throws Exception {
+        File file = file("a < b\n");
+        try {
+            String body = body(PamRequestBuilder.executeProcess("/Flow", "u", "p", null, null, null,
+                    new String[] { "doc:" + file.getPath() }, false));
+            assertContains(body, "<itp:param name=\"doc\">a &lt; b\n</itp:param>");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsControlCharactersInStreamedFiles() throws Exception {
+        File file = file("binary\u0001");
+        try {
+            PamRequest request = PamRequestBuilder.executeProcess("/Flow", "u", "p", null, null, null,
+                    new String[] { "doc:" + file.getPath() }, false);
+            try {
+                body(request);
+                fail();
+            } catch (IOException e) {
+                assertContains(e.getMessage(), "send it as base64 instead");
+            }
+            String body = body(PamRequestBuilder.executeProcess("/Flow", "u", "p", null, null, null,
+                    new String[] { "doc:" + file.getPath() }, true));
+            assertContains(body, "<itp:param name=\"doc\">YmluYXJ5AQ==</itp:param>");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void equalRequestsForEqualInputs() throws Exception {
+        assertEquals(PamRequestBuilder.checkServerStatus("u", "p"), PamRequestBuilder.checkServerStatus("u", "p"));
+        assertEquals(PamRequestBuilder.checkServerStatus("u", "p").hashCode(), PamRequestBuilder.checkServerStatus("u", "p").hashCode());
+        assertTrue(!PamRequestBuilder.checkServerStatus("u", "p").equals(PamRequestBuilder.checkServerStatus("u", "q")));
+    }
+
+    private static String body(PamRequest request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeTo(out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static File file(String content) throws IOException {
+        File file = File.createTempFile("pam-request-test", ".txt");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertContains(String text, String expected) {
+        assertTrue("Expected [" + expected + "] in [" + text + "]", text.contains(expected));
+    }
+}
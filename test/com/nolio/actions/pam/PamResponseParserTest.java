@@ -0,0 +1,93 @@
+package com.nolio.actions.pam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class PamResponseParserTest {
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:itp=\"http://www.ca.com/itpam\">"
+            + "<SOAP-ENV:Body>";
+    private static final String ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    @Test
+    public void readsStatusAndDataset() throws Exception {
+        PamResponse response = parse("<itp:getProcessStatusResponse><itp:flow>"
+                + "<itp:ROID>123</itp:ROID><itp:flow-state>Completed</itp:flow-state>"
+                + "<itp:params><itp:param name=\"a\">1</itp:param><itp:param name=\"b\">x:y</itp:param></itp:params>"
+                + "</itp:flow></itp:getProcessStatusResponse>", null);
+        assertFalse(response.hasFault());
+        assertEquals("123", response.getInstanceRoid());
+        assertEquals("Completed", response.getFlowState());
+        assertTrue(response.isEnded());
+        assertArrayEquals(new String[] { "a:1", "b:x:y" }, response.getDataset().toArray());
+    }
+
+    @Test
+    public void joinsValuesSplitAcrossTextNodes() throws Exception {
+        PamResponse response = parse("<itp:flow-state>Run<!-- c -->ning</itp:flow-state>"
+                + "<itp:params><itp:param name=\"v\">a &amp; <![CDATA[<b>]]> c</itp:param></itp:params>", null);
+        assertEquals("Running", response.getFlowState());
+        assertEquals("a & <b> c", response.getDataset().getValue(0));
+    }
+
+    @Test
+    public void takesOnlyDirectChildrenOfParamsAndSkipsNestedElements() throws Exception {
+        PamResponse response = parse("<itp:params>"
+                + "<itp:param name=\"outer\">1<itp:params><itp:param name=\"inner\">2</itp:param></itp:params>3</itp:param>"
+                + "<itp:param name=\"next\">4</itp:param>"
+                + "</itp:params>"
+                + "<itp:param name=\"outside\">5</itp:param>", null);
+        assertArrayEquals(new String[] { "outer:13", "next:4" }, response.getDataset().toArray());
+    }
+
+    @Test
+    public void firstOccurrenceOfSingleValuedElementsWins() throws Exception {
+        PamResponse response = parse("<itp:flow-state>Running</itp:flow-state><itp:flow-state>Completed</itp:flow-state>"
+                + "<itp:ROID>1</itp:ROID><itp:ROID>2</itp:ROID>", null);
+        assertEquals("Running", response.getFlowState());
+        assertEquals("1", response.getInstanceRoid());
+    }
+
+    @Test
+    public void missingElementsAreEmpty() throws Exception {
+        PamResponse response = parse("<itp:other/>", null);
+        assertEquals("", response.getFlowState());
+        assertEquals("", response.getInstanceRoid());
+        assertEquals("", response.getServerStatus());
+        assertEquals(0, response.getDataset().size());
+    }
+
+    @Test
+    public void readsFaultString() throws Exception {
+        PamResponse response = parse("<SOAP-ENV:Fault><faultcode>SOAP-ENV:Server</faultcode>"
+                + "<faultstring>Invalid credentials</faultstring></SOAP-ENV:Fault>", null);
+        assertTrue(response.hasFault());
+        assertEquals("Invalid credentials", response.getFaultString());
+    }
+
+    @Test
+    public void ignoresFaultElementsOutsideTheSoapNamespace() throws Exception {
+        PamResponse response = parse("<itp:Fault><faultstring>not a fault</faultstring></itp:Fault>", null);
+        assertFalse(response.hasFault());
+    }
+
+    @Test
+    public void keepsOnlyParamsAcceptedByTheFilter() throws Exception {
+        PamResponse response = parse("<itp:params><itp:param name=\"a\">1</itp:param>"
+                + "<itp:param name=\"b\"><x>skipped</x></itp:param><itp:param name=\"c1\">3</itp:param></itp:params>",
+                PamDatasetFilter.of(new String[] { "a" }, "c\\d"));
+        assertArrayEquals(new String[] { "a:1", "c1:3" }, response.getDataset().toArray());
+    }
+
+    private static PamResponse parse(String body, PamDatasetFilter filter) throws Exception {
+        byte[] xml = (ENVELOPE_START + body + ENVELOPE_END).getBytes("UTF-8");
+        return PamResponseParser.parse(new ByteArrayInputStream(xml), null, filter);
+    }
+}
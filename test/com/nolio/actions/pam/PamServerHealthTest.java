@@ -0,0 +1,103 @@
+package com.nolio.actions.pam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Runs with the default settings: open after 3 connect failures, for 30 seconds */
+public class PamServerHealthTest {
+
+    private static final AtomicInteger DOMAINS = new AtomicInteger();
+
+    @Test
+    public void opensAfterConsecutiveConnectFailures() throws Exception {
+        PamServerHealth health = newHealth();
+        for (int i = 1; i < PamServerHealth.FAILURE_THRESHOLD; i++) {
+            health.onConnectFailure();
+            assertEquals(PamServerHealth.State.CLOSED, health.getState());
+            health.beforeCall();
+        }
+        health.onConnectFailure();
+        assertEquals(PamServerHealth.State.OPEN, health.getState());
+        assertFalse(health.isAvailable());
+    }
+
+    @Test
+    public void failsFastWhileOpen() throws Exception {
+        PamServerHealth health = open(newHealth());
+        try {
+            health.beforeCall();
+            fail();
+        } catch (PamConnectException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("marked unavailable after " + PamServerHealth.FAILURE_THRESHOLD));
+        }
+    }
+
+    @Test
+    public void anAnswerResetsTheFailureCount() throws Exception {
+        PamServerHealth health = newHealth();
+        for (int i = 1; i < PamServerHealth.FAILURE_THRESHOLD; i++) {
+            health.onConnectFailure();
+        }
+        health.onSuccess(null);
+        for (int i = 1; i < PamServerHealth.FAILURE_THRESHOLD; i++) {
+            health.onConnectFailure();
+        }
+        assertEquals(PamServerHealth.State.CLOSED, health.getState());
+    }
+
+    @Test
+    public void anAnswerWhileOpenClosesTheBreaker() throws Exception {
+        PamServerHealth health = open(newHealth());
+        PamResponse response = new PamResponse();
+        response.setServerStatus("Active");
+        health.onSuccess(response);
+        assertEquals(PamServerHealth.State.CLOSED, health.getState());
+        assertTrue(health.isAvailable());
+        assertEquals("Active", health.getLastServerStatus());
+        health.beforeCall();
+    }
+
+    @Test
+    public void inconclusiveCallsDoNotChangeTheState() throws Exception {
+        PamServerHealth health = newHealth();
+        health.onInconclusive();
+        assertEquals(PamServerHealth.State.CLOSED, health.getState());
+        open(health);
+        health.onInconclusive();
+        assertEquals(PamServerHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    public void keepsAMovingAverageOfTheLatency() throws Exception {
+        PamServerHealth health = newHealth();
+        assertEquals(-1, health.getLatencyMillis(), 0);
+        health.recordLatency(10000000);
+        assertEquals(10, health.getLatencyMillis(), 0.001);
+        health.recordLatency(20000000);
+        assertEquals(12, health.getLatencyMillis(), 0.001);
+    }
+
+    @Test
+    public void domainsAreKeyedOnTheNormalizedUrl() throws Exception {
+        String domain = "http://health-test-" + DOMAINS.incrementAndGet() + ":8080/itpam";
+        assertTrue(PamServerHealth.forDomain(domain) == PamServerHealth.forDomain(" " + domain + "/"));
+    }
+
+    private static PamServerHealth newHealth() {
+        return PamServerHealth.forDomain("http://health-test-" + DOMAINS.incrementAndGet() + ":8080/itpam");
+    }
+
+    private static PamServerHealth open(PamServerHealth health) {
+        for (int i = 0; i < PamServerHealth.FAILURE_THRESHOLD; i++) {
+            health.onConnectFailure();
+        }
+        assertEquals(PamServerHealth.State.OPEN, health.getState());
+        return health;
+    }
+}